@@ -0,0 +1,11 @@
+package corpus;
+
+import java.io.IOException;
+
+/**
+ * 语料来源，每次open()从头开始新的一遍扫描（建词表一遍，每个迭代各一遍）
+ */
+public interface CorpusSource {
+
+    LineIterator open() throws IOException;
+}
@@ -0,0 +1,89 @@
+package corpus;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 依次读取多个文件，按后缀自动解压
+ */
+public class FileSource implements CorpusSource {
+
+    private final List<File> files;
+
+    public FileSource(String... paths) {
+        files = new ArrayList<>(paths.length);
+        for (String path : paths) {
+            files.add(new File(path));
+        }
+    }
+
+    public FileSource(List<File> files) {
+        this.files = new ArrayList<>(files);
+    }
+
+    /**
+     * 目录下的所有普通文件（不递归），按文件名排序
+     */
+    public static FileSource fromDirectory(String dir) throws IOException {
+        File[] children = new File(dir).listFiles(File::isFile);
+        if (children == null) {
+            throw new IOException("not a directory: " + dir);
+        }
+        Arrays.sort(children);
+        return new FileSource(Arrays.asList(children));
+    }
+
+    public List<File> getFiles() {
+        return Collections.unmodifiableList(files);
+    }
+
+    /**
+     * 用threadNum个线程并行解压读取，各文件的行会交错输出
+     */
+    public CorpusSource parallel(int threadNum) {
+        List<CorpusSource> parts = new ArrayList<>(files.size());
+        for (File file : files) {
+            parts.add(new FileSource(Collections.singletonList(file)));
+        }
+        return new ReadaheadSource(parts, threadNum);
+    }
+
+    @Override
+    public LineIterator open() {
+        return new LineIterator() {
+            private int next = 0;
+            private LineIterator current;
+
+            @Override
+            public String nextLine() throws IOException {
+                while (true) {
+                    if (current == null) {
+                        if (next >= files.size()) {
+                            return null;
+                        }
+                        current = StreamSource.readLines(StreamDecoders.open(files.get(next++)));
+                    }
+                    String line = current.nextLine();
+                    if (line != null) {
+                        return line;
+                    }
+                    current.close();
+                    current = null;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (current != null) {
+                    current.close();
+                    current = null;
+                }
+                next = files.size();
+            }
+        };
+    }
+}
@@ -0,0 +1,31 @@
+package corpus;
+
+import java.util.Iterator;
+import java.util.function.Supplier;
+
+/**
+ * 从内存中的Iterator读语料，每一遍扫描调用一次supplier
+ */
+public class IteratorSource implements CorpusSource {
+
+    private final Supplier<? extends Iterator<String>> supplier;
+
+    public IteratorSource(Supplier<? extends Iterator<String>> supplier) {
+        this.supplier = supplier;
+    }
+
+    @Override
+    public LineIterator open() {
+        Iterator<String> iterator = supplier.get();
+        return new LineIterator() {
+            @Override
+            public String nextLine() {
+                return iterator.hasNext() ? iterator.next() : null;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
@@ -0,0 +1,12 @@
+package corpus;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+public interface LineIterator extends Closeable {
+
+    /**
+     * @return 下一行，读完返回null
+     */
+    String nextLine() throws IOException;
+}
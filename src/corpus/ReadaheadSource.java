@@ -0,0 +1,123 @@
+package corpus;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 预读：多个线程并行读取（解压）各个子来源，按批放入有界队列，
+ * 解压只在内存中进行，不需要在磁盘上保留解压后的语料
+ */
+public class ReadaheadSource implements CorpusSource {
+
+    private static final int BATCH_SIZE = 1024;
+    private static final List<String> END_BATCH = Collections.unmodifiableList(new ArrayList<>());
+
+    private final List<? extends CorpusSource> parts;
+    private final int threadNum;
+    private final int queueSize;
+
+    public ReadaheadSource(List<? extends CorpusSource> parts, int threadNum) {
+        this(parts, threadNum, 64);
+    }
+
+    public ReadaheadSource(List<? extends CorpusSource> parts, int threadNum, int queueSize) {
+        this.parts = parts;
+        this.threadNum = Math.max(1, Math.min(threadNum, parts.size()));
+        this.queueSize = queueSize;
+    }
+
+    @Override
+    public LineIterator open() {
+        BlockingQueue<List<String>> queue = new ArrayBlockingQueue<>(queueSize);
+        AtomicInteger nextPart = new AtomicInteger(0);
+        AtomicInteger running = new AtomicInteger(threadNum);
+        // 任何异常都要记录，否则消费者会把截断的语料当作正常结束
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threadNum, r -> {
+            Thread t = new Thread(r, "corpus-readahead");
+            t.setDaemon(true);
+            return t;
+        });
+        for (int i = 0; i < threadNum; i++) {
+            executor.execute(() -> {
+                boolean interrupted = false;
+                try {
+                    int idx;
+                    while ((idx = nextPart.getAndIncrement()) < parts.size() && error.get() == null) {
+                        try (LineIterator it = parts.get(idx).open()) {
+                            List<String> batch = new ArrayList<>(BATCH_SIZE);
+                            String line;
+                            while ((line = it.nextLine()) != null) {
+                                batch.add(line);
+                                if (batch.size() >= BATCH_SIZE) {
+                                    queue.put(batch);
+                                    batch = new ArrayList<>(BATCH_SIZE);
+                                }
+                            }
+                            if (!batch.isEmpty()) {
+                                queue.put(batch);
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // closed by consumer
+                    interrupted = true;
+                } catch (Throwable t) {
+                    error.compareAndSet(null, t);
+                } finally {
+                    if (running.decrementAndGet() == 0 && !interrupted) {
+                        try {
+                            queue.put(END_BATCH);
+                        } catch (InterruptedException e) {
+                            // closed by consumer
+                        }
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+
+        return new LineIterator() {
+            private List<String> batch = Collections.emptyList();
+            private int pos = 0;
+
+            @Override
+            public String nextLine() throws IOException {
+                while (pos >= batch.size()) {
+                    if (batch == END_BATCH) {
+                        return null;
+                    }
+                    try {
+                        batch = queue.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                    pos = 0;
+                    Throwable t = error.get();
+                    if (batch == END_BATCH && t != null) {
+                        if (t instanceof IOException) {
+                            throw (IOException) t;
+                        }
+                        throw new IOException("Failed to read corpus", t);
+                    }
+                }
+                return batch.get(pos++);
+            }
+
+            @Override
+            public void close() {
+                executor.shutdownNow();
+            }
+        };
+    }
+}
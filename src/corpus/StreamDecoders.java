@@ -0,0 +1,50 @@
+package corpus;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * 按文件后缀选择解压方式，默认支持gzip，其他格式(如zstd)通过register加入
+ */
+public class StreamDecoders {
+
+    public interface Decoder {
+        InputStream decode(InputStream in) throws IOException;
+    }
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final Map<String, Decoder> DECODERS = new ConcurrentHashMap<>();
+
+    static {
+        register(".gz", in -> new GZIPInputStream(in, BUFFER_SIZE));
+    }
+
+    /**
+     * 例如 register(".zst", in -> new ZstdInputStream(in))
+     */
+    public static void register(String suffix, Decoder decoder) {
+        DECODERS.put(suffix, decoder);
+    }
+
+    public static InputStream open(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        Decoder decoder = dot < 0 ? null : DECODERS.get(name.substring(dot));
+        if (decoder == null) {
+            return in;
+        }
+        try {
+            return decoder.decode(in);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+}
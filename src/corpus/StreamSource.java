@@ -0,0 +1,43 @@
+package corpus;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 从InputStream读语料，每一遍扫描都会重新打开一个流
+ */
+public class StreamSource implements CorpusSource {
+
+    public interface StreamOpener {
+        InputStream open() throws IOException;
+    }
+
+    private final StreamOpener opener;
+
+    public StreamSource(StreamOpener opener) {
+        this.opener = opener;
+    }
+
+    @Override
+    public LineIterator open() throws IOException {
+        return readLines(opener.open());
+    }
+
+    static LineIterator readLines(InputStream in) {
+        BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+        return new LineIterator() {
+            @Override
+            public String nextLine() throws IOException {
+                return br.readLine();
+            }
+
+            @Override
+            public void close() throws IOException {
+                br.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,338 @@
+package evaluation;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import training.VectorModel;
+import training.WordScore;
+
+/**
+ * 模型质量和查询性能的评测：
+ * 类比测试用questions-words格式，以":"开头的行是分组名，其余每行 a b c d 表示 a:b = c:d；
+ * 相似度测试每行 word1 word2 score，以"#"开头的行忽略，结果为余弦相似度与人工打分的Spearman相关系数。
+ * 查询分批在多个线程上并行执行，同时统计每个查询的延迟
+ *
+ * 用法: Evaluator model questions-words.txt [similarity.txt] [threads]
+ */
+public class Evaluator {
+
+    private static final int BATCH_SIZE = 64;
+
+    /**
+     * 一组查询的吞吐量和延迟
+     */
+    public static class QueryStats {
+        private final long[] latencies;     // 纳秒，已排序
+        private final double seconds;
+
+        QueryStats(long[] latencies, double seconds) {
+            this.latencies = latencies.clone();
+            Arrays.sort(this.latencies);
+            this.seconds = seconds;
+        }
+
+        public int count() {
+            return latencies.length;
+        }
+
+        public double queriesPerSecond() {
+            return seconds > 0 ? latencies.length / seconds : 0;
+        }
+
+        /**
+         * @return 第p百分位的延迟(毫秒)
+         */
+        public double percentile(double p) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int idx = (int) Math.ceil(p / 100 * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(latencies.length - 1, idx))] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d queries in %.2fs, %.1f queries/sec, latency p50 %.3fms p90 %.3fms "
+                                 + "p99 %.3fms max %.3fms",
+                                 count(), seconds, queriesPerSecond(), percentile(50), percentile(90),
+                                 percentile(99), percentile(100));
+        }
+    }
+
+    public static class SectionResult {
+        public final String name;
+        public int total;
+        public int answered;
+        public int correct;
+
+        SectionResult(String name) {
+            this.name = name;
+        }
+
+        public double accuracy() {
+            return answered == 0 ? 0 : correct / (double) answered;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %.2f%% (%d/%d), %d/%d questions answered",
+                                 name, 100 * accuracy(), correct, answered, answered, total);
+        }
+    }
+
+    public static class AnalogyResult {
+        public final List<SectionResult> sections;
+        public final SectionResult overall;
+        public final QueryStats stats;
+
+        AnalogyResult(List<SectionResult> sections, SectionResult overall, QueryStats stats) {
+            this.sections = sections;
+            this.overall = overall;
+            this.stats = stats;
+        }
+
+        public double accuracy() {
+            return overall.accuracy();
+        }
+    }
+
+    public static class SimilarityResult {
+        public final int total;
+        public final int answered;
+        public final double spearman;
+        public final QueryStats stats;
+
+        SimilarityResult(int total, int answered, double spearman, QueryStats stats) {
+            this.total = total;
+            this.answered = answered;
+            this.spearman = spearman;
+            this.stats = stats;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Similarity: spearman %.4f, %d/%d pairs answered", spearman, answered, total);
+        }
+    }
+
+    private interface Query {
+        void run(int index);
+    }
+
+    public static AnalogyResult evaluateAnalogy(VectorModel model, String questionFile, int threads)
+            throws IOException {
+        List<SectionResult> sections = new ArrayList<>();
+        List<String[]> questions = new ArrayList<>();
+        List<SectionResult> questionSections = new ArrayList<>();
+        SectionResult section = null;
+        for (String line : readLines(questionFile)) {
+            if (line.startsWith(":")) {
+                section = new SectionResult(line.substring(1).trim());
+                sections.add(section);
+                continue;
+            }
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length != 4) {
+                continue;
+            }
+            if (section == null) {
+                section = new SectionResult("default");
+                sections.add(section);
+            }
+            section.total++;
+            questions.add(parts);
+            questionSections.add(section);
+        }
+
+        // 0: 未回答，1: 错误，2: 正确
+        byte[] outcomes = new byte[questions.size()];
+        QueryStats stats = runQueries(questions.size(), threads, i -> {
+            String[] q = questions.get(i);
+            if (!model.contains(q[3])) {
+                return;
+            }
+            List<WordScore> result = model.analogy(q[0], q[1], q[2], 3);
+            if (result.isEmpty()) {
+                return;
+            }
+            outcomes[i] = 1;
+            for (WordScore ws : result) {
+                if (!ws.name.equals(q[0]) && !ws.name.equals(q[1])) {
+                    if (ws.name.equals(q[3])) {
+                        outcomes[i] = 2;
+                    }
+                    break;
+                }
+            }
+        });
+
+        SectionResult overall = new SectionResult("total");
+        overall.total = questions.size();
+        for (int i = 0; i < outcomes.length; i++) {
+            SectionResult s = questionSections.get(i);
+            if (outcomes[i] > 0) {
+                s.answered++;
+                overall.answered++;
+            }
+            if (outcomes[i] == 2) {
+                s.correct++;
+                overall.correct++;
+            }
+        }
+        return new AnalogyResult(sections, overall, stats);
+    }
+
+    public static SimilarityResult evaluateSimilarity(VectorModel model, String pairFile, int threads)
+            throws IOException {
+        List<String[]> pairs = new ArrayList<>();
+        for (String line : readLines(pairFile)) {
+            if (line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length < 3) {
+                continue;
+            }
+            try {
+                Double.parseDouble(parts[2]);
+            } catch (NumberFormatException e) {
+                // 表头
+                continue;
+            }
+            pairs.add(parts);
+        }
+
+        double[] predicted = new double[pairs.size()];
+        QueryStats stats = runQueries(pairs.size(), threads, i -> {
+            String[] pair = pairs.get(i);
+            predicted[i] = model.similarity(pair[0], pair[1]);
+        });
+
+        List<Double> gold = new ArrayList<>();
+        List<Double> cosine = new ArrayList<>();
+        for (int i = 0; i < pairs.size(); i++) {
+            if (!Double.isNaN(predicted[i])) {
+                gold.add(Double.parseDouble(pairs.get(i)[2]));
+                cosine.add(predicted[i]);
+            }
+        }
+        return new SimilarityResult(pairs.size(), gold.size(), spearman(gold, cosine), stats);
+    }
+
+    private static QueryStats runQueries(int count, int threads, Query query) throws IOException {
+        long[] latencies = new long[count];
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int from = 0; from < count; from += BATCH_SIZE) {
+                int begin = from;
+                int end = Math.min(count, from + BATCH_SIZE);
+                futures.add(executor.submit(() -> {
+                    for (int i = begin; i < end; i++) {
+                        long t = System.nanoTime();
+                        query.run(i);
+                        latencies[i] = System.nanoTime() - t;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+        return new QueryStats(latencies, (System.nanoTime() - start) / 1e9);
+    }
+
+    static double spearman(List<Double> x, List<Double> y) {
+        if (x.size() < 2) {
+            return Double.NaN;
+        }
+        double[] rx = ranks(x);
+        double[] ry = ranks(y);
+        double mean = (x.size() + 1) / 2.0;
+        double cov = 0, vx = 0, vy = 0;
+        for (int i = 0; i < rx.length; i++) {
+            cov += (rx[i] - mean) * (ry[i] - mean);
+            vx += (rx[i] - mean) * (rx[i] - mean);
+            vy += (ry[i] - mean) * (ry[i] - mean);
+        }
+        return cov / Math.sqrt(vx * vy);
+    }
+
+    /**
+     * 从1开始的秩，相同值取平均秩
+     */
+    private static double[] ranks(List<Double> values) {
+        Integer[] order = new Integer[values.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(values.get(a), values.get(b)));
+        double[] ranks = new double[order.length];
+        for (int i = 0; i < order.length; ) {
+            int j = i;
+            while (j + 1 < order.length && values.get(order[j + 1]).equals(values.get(order[i]))) {
+                j++;
+            }
+            double rank = (i + j) / 2.0 + 1;
+            for (int k = i; k <= j; k++) {
+                ranks[order[k]] = rank;
+            }
+            i = j + 1;
+        }
+        return ranks;
+    }
+
+    private static List<String> readLines(String path) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(path),
+                                                                          StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    lines.add(line);
+                }
+            }
+        }
+        return lines;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String modelFile = args[0];
+        String questions = args[1];
+        String similarity = args.length > 2 && !args[2].matches("\\d+") ? args[2] : null;
+        String lastArg = args[args.length - 1];
+        int threads = args.length > 2 && lastArg.matches("\\d+") ? Integer.parseInt(lastArg)
+                                                                  : Runtime.getRuntime().availableProcessors();
+
+        VectorModel model = VectorModel.loadFromFile(modelFile);
+        AnalogyResult analogy = evaluateAnalogy(model, questions, threads);
+        for (SectionResult section : analogy.sections) {
+            System.out.println(section);
+        }
+        System.out.println(analogy.overall);
+        System.out.println("Analogy " + analogy.stats);
+        if (similarity != null) {
+            SimilarityResult result = evaluateSimilarity(model, similarity, threads);
+            System.out.println(result);
+            System.out.println("Similarity " + result.stats);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package evaluation;
+
+import java.io.File;
+import java.util.Random;
+
+import training.TextModelCodec;
+import training.VectorModel;
+
+/**
+ * 模型文件读写的往返检查：写出含中文、日文、带重音字母和纯ASCII词的随机模型，
+ * 精确格式读回后词和每个值都必须与原来相同，再用VectorModel加载确认每个词都能查到
+ *
+ * 用法: ModelRoundTrip [rows] [dim]
+ */
+public class ModelRoundTrip {
+
+    private static final String[] SAMPLE_WORDS = {"亲", "北京大学", "こんにちは", "café", "naïve", "word", "</s>"};
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int dim = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        Random random = new Random(1);
+        String[] words = new String[rows];
+        float[] vectors = new float[rows * dim];
+        for (int i = 0; i < rows; i++) {
+            words[i] = i < SAMPLE_WORDS.length ? SAMPLE_WORDS[i] : SAMPLE_WORDS[i % SAMPLE_WORDS.length] + i;
+            for (int j = 0; j < dim; j++) {
+                // 训练初始化时向量在±0.5/dim之间，同时覆盖很小和较大的值
+                vectors[i * dim + j] = (float) ((random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(8) - 5));
+            }
+        }
+
+        File file = File.createTempFile("roundtrip", ".txt");
+        file.deleteOnExit();
+        TextModelCodec.write(file.getPath(), rows, dim, new TextModelCodec.RowSource() {
+            @Override
+            public String word(int row) {
+                return words[row];
+            }
+
+            @Override
+            public void vector(int row, float[] dest) {
+                System.arraycopy(vectors, row * dim, dest, 0, dim);
+            }
+        });
+
+        TextModelCodec.Matrix matrix = TextModelCodec.readMatrix(file.getPath(), Integer.MAX_VALUE,
+                                                                 TextModelCodec.DEFAULT_THREADS);
+        int errors = 0;
+        if (matrix.words.length != rows || matrix.dim != dim) {
+            throw new IllegalStateException("read " + matrix.words.length + "x" + matrix.dim
+                                            + ", expected " + rows + "x" + dim);
+        }
+        for (int i = 0; i < rows; i++) {
+            if (!words[i].equals(matrix.words[i])) {
+                System.out.println("row " + i + ": word " + matrix.words[i] + ", expected " + words[i]);
+                errors++;
+            }
+            for (int j = 0; j < dim; j++) {
+                if (Float.floatToIntBits(vectors[i * dim + j]) != Float.floatToIntBits(matrix.vectors[i * dim + j])) {
+                    System.out.println("row " + i + " column " + j + ": " + matrix.vectors[i * dim + j]
+                                       + ", expected " + vectors[i * dim + j]);
+                    errors++;
+                }
+            }
+        }
+
+        VectorModel model = VectorModel.loadFromFile(file.getPath());
+        for (String word : SAMPLE_WORDS) {
+            if (!model.contains(word)) {
+                System.out.println("VectorModel is missing " + word);
+                errors++;
+            }
+        }
+        System.out.println(errors == 0 ? "Round trip OK: " + rows + " rows, " + dim + " dims"
+                                       : "Round trip failed with " + errors + " errors");
+        if (errors > 0) {
+            System.exit(1);
+        }
+    }
+}
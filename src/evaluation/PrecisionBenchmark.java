@@ -0,0 +1,40 @@
+package evaluation;
+
+import training.VectorModel;
+import training.VectorModel.Precision;
+
+/**
+ * 对比FP32、BF16、FP16三种存储方式的内存、近邻查询吞吐量和类比准确率
+ *
+ * 用法: PrecisionBenchmark model questions-words.txt [queries]
+ */
+public class PrecisionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String modelFile = args[0];
+        String questions = args[1];
+        int queries = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+        VectorModel base = VectorModel.loadFromFile(modelFile);
+        for (Precision precision : Precision.values()) {
+            VectorModel model = base.withPrecision(precision);
+            int n = Math.min(queries, model.size());
+            // 预热
+            for (int i = 0; i < Math.min(n, 100); i++) {
+                model.nearestTopN(model.getWord(i), 10);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                model.nearestTopN(model.getWord(i), 10);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            Evaluator.AnalogyResult analogy = Evaluator.evaluateAnalogy(model, questions,
+                                                                        Runtime.getRuntime().availableProcessors());
+            System.out.println(analogy.overall);
+            double accuracy = analogy.accuracy();
+            System.out.println(String.format("%s: vectors %.1fMB, %.1f queries/sec, analogy accuracy %.2f%%",
+                                             precision, model.vectorBytes() / 1048576.0, n / seconds,
+                                             100 * accuracy));
+        }
+    }
+}
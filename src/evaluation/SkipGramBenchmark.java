@@ -0,0 +1,52 @@
+package evaluation;
+
+import java.io.File;
+
+import training.Trainer;
+import training.Trainer.TrainerBuilder;
+import training.VectorModel;
+
+/**
+ * 对比逐对更新的skip-gram和窗口内共享负样本的矩阵乘法版本的吞吐量和类比准确率
+ *
+ * 用法: SkipGramBenchmark corpus questions-words.txt [threads] [iter]
+ */
+public class SkipGramBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String corpus = args[0];
+        String questions = args[1];
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        int iter = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        File vocab = File.createTempFile("vocab", ".txt");
+        File model = File.createTempFile("model", ".txt");
+        vocab.deleteOnExit();
+        model.deleteOnExit();
+        new File(model.getPath() + ".neg").deleteOnExit();
+        for (boolean minibatch : new boolean[] {false, true}) {
+            Trainer trainer = new TrainerBuilder().setMethod(Trainer.Method.SKIP_GRAM)
+                                                  .setHierarchicalSoftmax(false)
+                                                  .setNegativeSample(5)
+                                                  .setMinibatch(minibatch)
+                                                  .setNumOfThread(threads)
+                                                  .setIter(iter)
+                                                  .setWindow(5)
+                                                  .setVectorSize(200).build();
+            long start = System.nanoTime();
+            trainer.training(corpus, vocab.getPath());
+            double total = (System.nanoTime() - start) / 1e9;
+            // 吞吐量只按训练轮次计时，建词表和初始化两种方式相同，单独报告
+            double seconds = trainer.getTrainingSeconds();
+            trainer.saveModel(model.getPath());
+            Evaluator.AnalogyResult analogy = Evaluator.evaluateAnalogy(VectorModel.loadFromFile(model.getPath()),
+                                                                        questions, threads);
+            System.out.println(analogy.overall);
+            double accuracy = analogy.accuracy();
+            System.out.println(String.format("%s: %.1fs training (+%.1fs setup), %.0f words/sec, analogy accuracy %.2f%%",
+                                             minibatch ? "minibatch" : "per-pair", seconds, total - seconds,
+                                             (double) trainer.getCorpusLen() * trainer.getEpochLosses().size() / seconds,
+                                             100 * accuracy));
+        }
+    }
+}
@@ -60,8 +60,11 @@ public class HuffmanNode implements Comparable<HuffmanNode> {
         this.negVector = negVector;
     }
 
-    public static HuffmanNode merge(HuffmanNode left, HuffmanNode right, boolean useNeg) {
-        HuffmanNode result = new HuffmanNode(left.frequency + right.frequency, left.vector.length, useNeg);
+    /**
+     * 内部节点只用于层次softmax，没有负采样的输出向量
+     */
+    public static HuffmanNode merge(HuffmanNode left, HuffmanNode right, int vectorSize) {
+        HuffmanNode result = new HuffmanNode(left.frequency + right.frequency, vectorSize, false);
         left.parent = right.parent = result;
         left.code = 0;
         right.code = 1;
@@ -74,13 +77,22 @@ public class HuffmanNode implements Comparable<HuffmanNode> {
                 this.frequency == hn.frequency ? 0 : -1;
     }
 
+    /**
+     * 不分配向量，向量由调用方统一存放
+     */
+    protected HuffmanNode(int freq) {
+        this.frequency = freq;
+        parent = null;
+        code = -1;
+    }
+
     public HuffmanNode(int freq, int vectorSize, boolean useNeg) {
         this.frequency = freq;
         vector = new float[vectorSize];
         parent = null;
         code = -1;
         if (useNeg) {
-            vector = new float[vectorSize];
+            negVector = new float[vectorSize];
         }
     }
 
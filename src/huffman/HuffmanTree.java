@@ -4,13 +4,13 @@ import java.util.*;
 
 public class HuffmanTree {
 
-    public static HuffmanNode makeHuffmanTree(Collection<? extends HuffmanNode> nodes, boolean useNeg) {
+    public static HuffmanNode makeHuffmanTree(Collection<? extends HuffmanNode> nodes, int vectorSize) {
         PriorityQueue<HuffmanNode> heap = new PriorityQueue<>(nodes);
         HuffmanNode parent = null;
         while (heap.size() > 1) {
             HuffmanNode left = heap.poll();
             HuffmanNode right = heap.poll();
-            parent = HuffmanNode.merge(left, right, useNeg);
+            parent = HuffmanNode.merge(left, right, vectorSize);
             heap.add(parent);
         }
         System.out.println("Network initialized");
@@ -7,15 +7,32 @@ import utils.MathUtils;
 public class WordNode extends HuffmanNode {
 
     private String word;
+    private int index = -1;     // 词表中按词频降序的编号
 
     public String getWord() {
         return word;
     }
 
+    public int getIndex() {
+        return index;
+    }
+
+    public void setIndex(int index) {
+        this.index = index;
+    }
+
 	public void setWord(String word) {
         this.word = word;
     }
 
+    /**
+     * 向量不放在节点中，训练时按index存放在Trainer的向量矩阵里
+     */
+    public WordNode(String word, int freq) {
+        super(freq);
+        this.word = word;
+    }
+
     public WordNode(String word, int freq, int vectorSize, boolean useNeg) {
         super(freq, vectorSize, useNeg);
         this.word = word;
@@ -28,6 +45,7 @@ public class WordNode extends HuffmanNode {
     public String toString() {
         final StringBuilder sb = new StringBuilder("WordNode{");
         sb.append("word='").append(word).append('\'');
+        sb.append(", index=").append(index);
         sb.append(", frequency=").append(frequency);
         sb.append(", code=").append(code);
         sb.append(", parent=").append(parent);
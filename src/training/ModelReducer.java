@@ -0,0 +1,418 @@
+package training;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import utils.MathUtils;
+
+/**
+ * 线上用的小模型：保留词频最高的topN个词(模型按词频降序，即前topN行)，
+ * 再用PCA降到k维。主成分用随机SVD求(Halko等)：中心化的矩阵乘随机高斯矩阵，
+ * 做几次幂迭代并正交化，最后只需对(k+oversample)阶的小矩阵做特征分解，
+ * 不需要d*d的协方差矩阵，中心化也在乘法中隐式完成
+ *
+ * 用法: ModelReducer model output topN k [threads]
+ */
+public class ModelReducer {
+
+    private int topN = 100000;
+    private int dimension = 100;
+    private int oversample = 10;
+    private int powerIterations = 2;
+    private int threads = TextModelCodec.DEFAULT_THREADS;
+    private long seed = 1;
+    private int reportQueries = 100;
+    private int reportTopN = 10;
+
+    private double explainedVariance;
+
+    public ModelReducer setTopN(int topN) {
+        this.topN = topN;
+        return this;
+    }
+
+    public ModelReducer setDimension(int dimension) {
+        this.dimension = dimension;
+        return this;
+    }
+
+    public ModelReducer setOversample(int oversample) {
+        this.oversample = oversample;
+        return this;
+    }
+
+    public ModelReducer setPowerIterations(int powerIterations) {
+        this.powerIterations = powerIterations;
+        return this;
+    }
+
+    public ModelReducer setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+        return this;
+    }
+
+    public ModelReducer setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * 邻居重合度报告中查询的词数和每个词比较的近邻数
+     */
+    public ModelReducer setReport(int queries, int topN) {
+        this.reportQueries = queries;
+        this.reportTopN = topN;
+        return this;
+    }
+
+    /**
+     * @return 上一次reduce保留的方差比例
+     */
+    public double getExplainedVariance() {
+        return explainedVariance;
+    }
+
+    /**
+     * 降维后的模型，每行已归一化
+     */
+    public VectorModel reduce(VectorModel model) throws InterruptedException {
+        VectorModel truncated = model.truncate(topN);
+        int n = truncated.size();
+        int d = truncated.getDimension();
+        String[] words = new String[n];
+        float[] x = new float[n * d];
+        for (int i = 0; i < n; i++) {
+            words[i] = truncated.getWord(i);
+            System.arraycopy(truncated.getVector(words[i]), 0, x, i * d, d);
+        }
+        if (dimension >= d) {
+            explainedVariance = 1;
+            return new VectorModel(words, x, d);
+        }
+
+        double[] mean = new double[d];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < d; j++) {
+                mean[j] += x[i * d + j];
+            }
+        }
+        for (int j = 0; j < d; j++) {
+            mean[j] /= n;
+        }
+
+        int l = Math.min(d, dimension + oversample);
+        Random random = new Random(seed);
+        double[][] omega = new double[l][d];
+        for (double[] col : omega) {
+            for (int j = 0; j < d; j++) {
+                col[j] = random.nextGaussian();
+            }
+        }
+        // Q: n*l，按列存放，每列正交化后作为列空间的基
+        double[][] q = multiply(x, n, d, mean, omega);
+        orthonormalize(q);
+        for (int it = 0; it < powerIterations; it++) {
+            double[][] z = multiplyTransposed(x, n, d, mean, q);
+            orthonormalize(z);
+            q = multiply(x, n, d, mean, z);
+            orthonormalize(q);
+        }
+        // B = Q^T * Xc 是l*d的小矩阵，B*B^T的特征向量给出Xc的右奇异向量
+        double[][] b = multiplyTransposed(x, n, d, mean, q);
+        double[][] gram = new double[l][l];
+        for (int r = 0; r < l; r++) {
+            for (int c = r; c < l; c++) {
+                gram[r][c] = gram[c][r] = MathUtils.dotProduct(b[r], b[c]);
+            }
+        }
+        double[] eigenValues = new double[l];
+        double[][] eigenVectors = new double[l][l];
+        symmetricEigen(gram, eigenValues, eigenVectors);
+        Integer[] order = new Integer[l];
+        for (int i = 0; i < l; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (i1, i2) -> Double.compare(eigenValues[i2], eigenValues[i1]));
+
+        int k = dimension;
+        double[][] components = new double[k][d];
+        double explained = 0;
+        for (int c = 0; c < k; c++) {
+            int e = order[c];
+            double s = Math.sqrt(Math.max(eigenValues[e], 1e-30));
+            for (int r = 0; r < l; r++) {
+                double w = eigenVectors[r][e] / s;
+                for (int j = 0; j < d; j++) {
+                    components[c][j] += w * b[r][j];
+                }
+            }
+            explained += eigenValues[e];
+        }
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < d; j++) {
+                double v = x[i * d + j] - mean[j];
+                total += v * v;
+            }
+        }
+        explainedVariance = total > 0 ? explained / total : 1;
+
+        double[][] projected = multiply(x, n, d, mean, components);
+        float[] result = new float[n * k];
+        for (int i = 0; i < n; i++) {
+            for (int c = 0; c < k; c++) {
+                result[i * k + c] = (float) projected[c][i];
+            }
+            MathUtils.normalizeVector(result, i * k, k);
+        }
+        return new VectorModel(words, result, k);
+    }
+
+    /**
+     * (X - 1*mean^T) * M，M按列给出(每列长度d)，结果按列存放(每列长度n)
+     */
+    private double[][] multiply(float[] x, int n, int d, double[] mean, double[][] m)
+            throws InterruptedException {
+        int cols = m.length;
+        double[] shift = new double[cols];
+        for (int c = 0; c < cols; c++) {
+            shift[c] = MathUtils.dotProduct(mean, m[c]);
+        }
+        double[][] out = new double[cols][n];
+        forRanges(n, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                int offset = i * d;
+                for (int c = 0; c < cols; c++) {
+                    double[] col = m[c];
+                    double sum = 0;
+                    for (int j = 0; j < d; j++) {
+                        sum += x[offset + j] * col[j];
+                    }
+                    out[c][i] = sum - shift[c];
+                }
+            }
+            return null;
+        });
+        return out;
+    }
+
+    /**
+     * (X - 1*mean^T)^T * Q，Q按列给出(每列长度n)，结果按列存放(每列长度d)；
+     * 各线程分别累加自己的行，最后相加
+     */
+    private double[][] multiplyTransposed(float[] x, int n, int d, double[] mean, double[][] q)
+            throws InterruptedException {
+        int cols = q.length;
+        double[][] out = new double[cols][d];
+        for (double[][] partial : forRanges(n, (from, to) -> {
+            double[][] acc = new double[cols][d];
+            for (int i = from; i < to; i++) {
+                int offset = i * d;
+                for (int c = 0; c < cols; c++) {
+                    double w = q[c][i];
+                    double[] dest = acc[c];
+                    for (int j = 0; j < d; j++) {
+                        dest[j] += w * x[offset + j];
+                    }
+                }
+            }
+            return acc;
+        })) {
+            for (int c = 0; c < cols; c++) {
+                MathUtils.vectorAcc(out[c], partial[c]);
+            }
+        }
+        for (int c = 0; c < cols; c++) {
+            double colSum = 0;
+            for (int i = 0; i < n; i++) {
+                colSum += q[c][i];
+            }
+            for (int j = 0; j < d; j++) {
+                out[c][j] -= colSum * mean[j];
+            }
+        }
+        return out;
+    }
+
+    private interface RangeTask<T> {
+        T run(int from, int to);
+    }
+
+    private <T> List<T> forRanges(int n, RangeTask<T> task) throws InterruptedException {
+        int parts = Math.min(threads, Math.max(1, n / 1024));
+        ExecutorService executor = Executors.newFixedThreadPool(parts);
+        try {
+            List<Future<T>> futures = new ArrayList<>(parts);
+            for (int p = 0; p < parts; p++) {
+                int from = (int) ((long) n * p / parts);
+                int to = (int) ((long) n * (p + 1) / parts);
+                futures.add(executor.submit(() -> task.run(from, to)));
+            }
+            List<T> results = new ArrayList<>(parts);
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * 改进的Gram-Schmidt，各列变为单位正交；线性相关的列置零
+     */
+    private static void orthonormalize(double[][] cols) {
+        for (int c = 0; c < cols.length; c++) {
+            double[] col = cols[c];
+            for (int p = 0; p < c; p++) {
+                double proj = MathUtils.dotProduct(col, cols[p]);
+                double[] prev = cols[p];
+                for (int i = 0; i < col.length; i++) {
+                    col[i] -= proj * prev[i];
+                }
+            }
+            double norm = Math.sqrt(MathUtils.dotProduct(col, col));
+            double scale = norm > 1e-12 ? 1 / norm : 0;
+            for (int i = 0; i < col.length; i++) {
+                col[i] *= scale;
+            }
+        }
+    }
+
+    /**
+     * 对称矩阵的循环Jacobi特征分解，a会被修改；vectors的第i列是values[i]对应的特征向量
+     */
+    static void symmetricEigen(double[][] a, double[] values, double[][] vectors) {
+        int m = a.length;
+        for (int i = 0; i < m; i++) {
+            Arrays.fill(vectors[i], 0);
+            vectors[i][i] = 1;
+        }
+        for (int sweep = 0; sweep < 100; sweep++) {
+            double off = 0;
+            double diag = 0;
+            for (int i = 0; i < m; i++) {
+                diag += a[i][i] * a[i][i];
+                for (int j = i + 1; j < m; j++) {
+                    off += a[i][j] * a[i][j];
+                }
+            }
+            if (off <= 1e-22 * diag) {
+                break;
+            }
+            for (int p = 0; p < m; p++) {
+                for (int r = p + 1; r < m; r++) {
+                    if (a[p][r] == 0) {
+                        continue;
+                    }
+                    double theta = (a[r][r] - a[p][p]) / (2 * a[p][r]);
+                    double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    if (theta == 0) {
+                        t = 1;
+                    }
+                    double c = 1 / Math.sqrt(t * t + 1);
+                    double s = t * c;
+                    for (int i = 0; i < m; i++) {
+                        double aip = a[i][p];
+                        double air = a[i][r];
+                        a[i][p] = c * aip - s * air;
+                        a[i][r] = s * aip + c * air;
+                    }
+                    for (int i = 0; i < m; i++) {
+                        double api = a[p][i];
+                        double ari = a[r][i];
+                        a[p][i] = c * api - s * ari;
+                        a[r][i] = s * api + c * ari;
+                    }
+                    for (int i = 0; i < m; i++) {
+                        double vip = vectors[i][p];
+                        double vir = vectors[i][r];
+                        vectors[i][p] = c * vip - s * vir;
+                        vectors[i][r] = s * vip + c * vir;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < m; i++) {
+            values[i] = a[i][i];
+        }
+    }
+
+    /**
+     * 以原模型的近邻为准，比较小模型近邻的重合度。查询词在前topN个词中均匀选取，
+     * 原模型在全部词中查找近邻，因此同时反映截断词表和降维的影响
+     */
+    public String report(VectorModel original, VectorModel reduced) {
+        int queries = Math.min(reportQueries, reduced.size());
+        double truncatedOverlap = 0;
+        double reducedOverlap = 0;
+        VectorModel truncated = original.truncate(reduced.size());
+        for (int q = 0; q < queries; q++) {
+            String word = reduced.getWord((int) ((long) q * reduced.size() / queries));
+            Set<String> expected = names(original.nearestTopN(word, reportTopN));
+            truncatedOverlap += overlap(expected, names(truncated.nearestTopN(word, reportTopN)));
+            reducedOverlap += overlap(expected, names(reduced.nearestTopN(word, reportTopN)));
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Words: %d -> %d%n", original.size(), reduced.size()));
+        sb.append(String.format("Dimension: %d -> %d, explained variance %.2f%%%n",
+                                original.getDimension(), reduced.getDimension(), 100 * explainedVariance));
+        sb.append(String.format("Vector bytes: %d -> %d%n", original.vectorBytes(), reduced.vectorBytes()));
+        sb.append(String.format("Top-%d neighbour overlap over %d words: truncated %.2f%%, reduced %.2f%%%n",
+                                reportTopN, queries, 100 * truncatedOverlap / Math.max(1, queries),
+                                100 * reducedOverlap / Math.max(1, queries)));
+        return sb.toString();
+    }
+
+    private static Set<String> names(List<WordScore> scores) {
+        Set<String> result = new HashSet<>();
+        for (WordScore ws : scores) {
+            result.add(ws.name);
+        }
+        return result;
+    }
+
+    private static double overlap(Set<String> expected, Set<String> actual) {
+        if (expected.isEmpty()) {
+            return 1;
+        }
+        int hit = 0;
+        for (String word : actual) {
+            if (expected.contains(word)) {
+                hit++;
+            }
+        }
+        return hit / (double) expected.size();
+    }
+
+    public static void main(String[] args) throws Exception {
+        String modelFile = args[0];
+        String outputFile = args[1];
+        ModelReducer reducer = new ModelReducer().setTopN(Integer.parseInt(args[2]))
+                                                 .setDimension(Integer.parseInt(args[3]));
+        if (args.length > 4) {
+            reducer.setThreads(Integer.parseInt(args[4]));
+        }
+
+        VectorModel original = VectorModel.loadFromFile(modelFile);
+        VectorModel reduced = reducer.reduce(original);
+        reduced.saveToFile(outputFile);
+        String report = reducer.report(original, reduced);
+        System.out.print(report);
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(outputFile + ".report"))) {
+            bw.write(report);
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package training;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import corpus.CorpusSource;
+import corpus.LineIterator;
+
+/**
+ * 短语检测(同C版本的word2phrase)：统计一元词和相邻二元词的频次，
+ * score(a, b) = (count(ab) - minCount) / (count(a) * count(b)) * 总词数，
+ * 超过threshold的二元词在读取语料时合并成 a_b，不需要输出改写后的语料文件。
+ * 每一遍只合并两个词，在合并后的语料上再检测一遍可以得到更长的短语
+ */
+public class PhraseDetector {
+
+    public static final char DELIMITER = '_';
+
+    private static final int BATCH_SIZE = 1024;
+    private static final List<String> END_BATCH = Collections.unmodifiableList(new ArrayList<>());
+
+    private final Set<String> phrases;      // "a b"，空格不会出现在词中
+
+    private PhraseDetector(Set<String> phrases) {
+        this.phrases = phrases;
+    }
+
+    /**
+     * 扫描一遍语料，由threadNum个线程分别统计后合并
+     *
+     * @param minCount    一元词和二元词的最小频次
+     * @param threshold   分数阈值，越大短语越少
+     * @param memoryBytes 一元词表和二元词表各自的内存上限(字节)，同建词表时的vocabMemory，
+     *                    超过时删除低频词条，0表示不限制。每个线程分得1/threadNum，合并后的表用全部预算
+     */
+    public static PhraseDetector learn(CorpusSource source, int minCount, double threshold,
+                                       long memoryBytes, int threadNum) throws IOException {
+        int workers = Math.max(1, threadNum);
+        // 各线程的份额加起来等于合并后的表的预算；预算太小时每个线程至少保留一个词条，不能变成不限制
+        long workerBytes = memoryBytes <= 0 ? 0 : Math.max(VocabCounter.BYTES_PER_ENTRY, memoryBytes / workers);
+        BlockingQueue<List<String>> queue = new ArrayBlockingQueue<>(workers * 4);
+        ExecutorService executor = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "phrase-count");
+            t.setDaemon(true);
+            return t;
+        });
+        List<Future<VocabCounter[]>> futures = new ArrayList<>(workers);
+        try {
+            for (int i = 0; i < workers; i++) {
+                futures.add(executor.submit(() -> {
+                    VocabCounter unigrams = VocabCounter.withMemoryBudget(workerBytes);
+                    VocabCounter bigrams = VocabCounter.withMemoryBudget(workerBytes);
+                    List<String> batch;
+                    while ((batch = queue.take()) != END_BATCH) {
+                        for (String line : batch) {
+                            String last = null;
+                            StringTokenizer st = new StringTokenizer(line);
+                            while (st.hasMoreTokens()) {
+                                String word = st.nextToken();
+                                unigrams.add(word);
+                                if (last != null) {
+                                    bigrams.add(last + ' ' + word);
+                                }
+                                last = word;
+                            }
+                        }
+                    }
+                    return new VocabCounter[] {unigrams, bigrams};
+                }));
+            }
+
+            try (LineIterator it = source.open()) {
+                List<String> batch = new ArrayList<>(BATCH_SIZE);
+                String line;
+                while ((line = it.nextLine()) != null) {
+                    batch.add(line);
+                    if (batch.size() >= BATCH_SIZE) {
+                        queue.put(batch);
+                        batch = new ArrayList<>(BATCH_SIZE);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    queue.put(batch);
+                }
+            }
+            for (int i = 0; i < workers; i++) {
+                queue.put(END_BATCH);
+            }
+
+            // 合并到按全部预算新建的表中，一元词表与建词表时的大小相同
+            VocabCounter unigrams = VocabCounter.withMemoryBudget(memoryBytes);
+            VocabCounter bigrams = VocabCounter.withMemoryBudget(memoryBytes);
+            for (Future<VocabCounter[]> future : futures) {
+                VocabCounter[] counters = future.get();
+                unigrams.addAll(counters[0]);
+                bigrams.addAll(counters[1]);
+            }
+            unigrams.report();
+            bigrams.report();
+            return fromCounts(unigrams, bigrams, minCount, threshold);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to count phrases", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static PhraseDetector fromCounts(VocabCounter unigrams, VocabCounter bigrams,
+                                             int minCount, double threshold) {
+        double trainWords = unigrams.getTotalCount();
+        Set<String> phrases = new HashSet<>();
+        // 频次小于minCount的二元词分数不为正，不用看
+        for (String bigram : bigrams.wordsByFrequency(minCount)) {
+            int sep = bigram.indexOf(' ');
+            int pa = unigrams.get(bigram.substring(0, sep));
+            int pb = unigrams.get(bigram.substring(sep + 1));
+            if (pa < minCount || pb < minCount) {
+                continue;
+            }
+            double score = (bigrams.get(bigram) - minCount) / (double) pa / pb * trainWords;
+            if (score > threshold) {
+                phrases.add(bigram);
+            }
+        }
+        System.out.println("Phrases: " + phrases.size() + " (" + bigrams.size() + " bigrams, "
+                           + unigrams.size() + " words)");
+        return new PhraseDetector(phrases);
+    }
+
+    public int size() {
+        return phrases.size();
+    }
+
+    public boolean isPhrase(String first, String second) {
+        return phrases.contains(first + ' ' + second);
+    }
+
+    /**
+     * 保存各遍检测出的短语，每行"遍号\t词1 词2"，按passes的顺序
+     */
+    public static void save(List<PhraseDetector> passes, String path) throws IOException {
+        try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path),
+                                                                           StandardCharsets.UTF_8))) {
+            for (int i = 0; i < passes.size(); i++) {
+                for (String phrase : new TreeSet<>(passes.get(i).phrases)) {
+                    bw.write(i + "\t" + phrase + "\n");
+                }
+            }
+        }
+    }
+
+    /**
+     * 读取save保存的短语，按顺序对语料apply即得到与训练时相同的合并结果
+     */
+    public static List<PhraseDetector> load(String path) throws IOException {
+        List<Set<String>> passes = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(path),
+                                                                          StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                int sep = line.indexOf('\t');
+                if (sep <= 0) {
+                    continue;
+                }
+                int pass = Integer.parseInt(line.substring(0, sep));
+                while (passes.size() <= pass) {
+                    passes.add(new HashSet<>());
+                }
+                passes.get(pass).add(line.substring(sep + 1));
+            }
+        }
+        List<PhraseDetector> result = new ArrayList<>(passes.size());
+        for (Set<String> phrases : passes) {
+            result.add(new PhraseDetector(phrases));
+        }
+        return result;
+    }
+
+    /**
+     * 合并一行中的短语，合并后的词不再和下一个词组成短语
+     */
+    public String apply(String line) {
+        StringBuilder sb = new StringBuilder(line.length());
+        String last = null;
+        StringTokenizer st = new StringTokenizer(line);
+        while (st.hasMoreTokens()) {
+            String word = st.nextToken();
+            if (last != null && isPhrase(last, word)) {
+                sb.append(DELIMITER).append(word);
+                last = null;
+            } else {
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                sb.append(word);
+                last = word;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return 每次读取时合并短语的语料
+     */
+    public CorpusSource apply(CorpusSource source) {
+        return () -> {
+            LineIterator it = source.open();
+            return new LineIterator() {
+                @Override
+                public String nextLine() throws IOException {
+                    String line = it.nextLine();
+                    return line == null ? null : apply(line);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    it.close();
+                }
+            };
+        };
+    }
+}
@@ -0,0 +1,558 @@
+package training;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 文本格式模型的并行读写。第一行是"词数 维数"，之后每行"词 v1 v2 ..."，与C版本word2vec兼容。
+ * 读取时把文件按行对齐切成块，先并行数出每块的行数得到每块的起始行号，再并行解析直接写到目标位置，
+ * 只读前maxWords行时只数到包含这些行的块为止；
+ * 写出时按行分块并行格式化，再按顺序写入文件
+ */
+public class TextModelCodec {
+
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+    public static final int EXACT_DIGITS = -1;    // 9位有效数字的科学计数法，读回后与原值完全相同
+    public static final int C_DIGITS = 6;         // 同C版本word2vec的"%.6f"
+
+    private static final int CHUNK_SIZE = 1 << 24;
+    private static final int WRITE_BLOCK_ROWS = 4096;
+    private static final double[] POW10 = new double[23];
+    private static final long[] LONG_POW10 = new long[19];
+    // 10的-SCALE_BIAS到SCALE_BIAS次方，覆盖float的所有数量级
+    private static final int SCALE_BIAS = 60;
+    private static final double[] SCALE = new double[2 * SCALE_BIAS + 1];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+        LONG_POW10[0] = 1;
+        for (int i = 1; i < LONG_POW10.length; i++) {
+            LONG_POW10[i] = LONG_POW10[i - 1] * 10;
+        }
+        for (int i = 0; i < SCALE.length; i++) {
+            SCALE[i] = Double.parseDouble("1e" + (i - SCALE_BIAS));
+        }
+    }
+
+    /**
+     * 解析出的一行，vec只在回调期间有效
+     */
+    public interface RowConsumer {
+        void accept(int row, String word, float[] vec);
+    }
+
+    /**
+     * 写出时按行号取词和向量
+     */
+    public interface RowSource {
+        String word(int row);
+
+        void vector(int row, float[] dest);
+    }
+
+    /**
+     * 未归一化的模型矩阵
+     */
+    public static class Matrix {
+        public final String[] words;
+        public final float[] vectors;
+        public final int dim;
+
+        Matrix(String[] words, float[] vectors, int dim) {
+            this.words = words;
+            this.vectors = vectors;
+            this.dim = dim;
+        }
+    }
+
+    public static Matrix readMatrix(String path, int maxWords, int threads) throws IOException {
+        int[] header = readHeader(path);
+        int rows = Math.min(maxWords, header[0]);
+        int dim = header[1];
+        String[] words = new String[rows];
+        float[] vectors = new float[rows * dim];
+        read(path, maxWords, threads, (row, word, vec) -> {
+            words[row] = word;
+            System.arraycopy(vec, 0, vectors, row * dim, dim);
+        });
+        return new Matrix(words, vectors, dim);
+    }
+
+    /**
+     * @return {词数, 维数}
+     */
+    public static int[] readHeader(String path) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+            String[] parts = file.readLine().trim().split("\\s+");
+            return new int[] {Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+        }
+    }
+
+    /**
+     * 并行解析前maxWords行，consumer会在多个线程中被调用
+     *
+     * @return 实际解析的行数
+     */
+    public static int read(String path, int maxWords, int threads, RowConsumer consumer) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+            FileChannel channel = file.getChannel();
+            String[] parts = file.readLine().trim().split("\\s+");
+            int wordCount = Integer.parseInt(parts[0]);
+            int dim = Integer.parseInt(parts[1]);
+            int rows = Math.min(maxWords, wordCount);
+            long[] bounds = chunkBounds(channel, file.getFilePointer(), channel.size());
+            int chunks = bounds.length - 1;
+
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+            try {
+                // 只数到包含前rows行的块为止，截断加载时不读后面的块。
+                // 先数一块，之后按每块的平均行数估计还需要几块，每批最多threads块
+                int[] firstRow = new int[chunks + 1];
+                int counted = 0;
+                int batch = 1;
+                while (counted < chunks && firstRow[counted] < rows) {
+                    int from = counted;
+                    int to = Math.min(chunks, from + batch);
+                    List<Future<Integer>> counts = new ArrayList<>(to - from);
+                    for (int c = from; c < to; c++) {
+                        long start = bounds[c];
+                        long end = bounds[c + 1];
+                        counts.add(executor.submit(() -> countLines(readChunk(channel, start, end))));
+                    }
+                    for (int c = from; c < to; c++) {
+                        firstRow[c + 1] = firstRow[c] + get(counts.get(c - from));
+                    }
+                    counted = to;
+                    int perChunk = Math.max(1, firstRow[counted] / counted);
+                    long remaining = rows - (long) firstRow[counted];
+                    batch = (int) Math.max(1, Math.min(Math.max(1, threads), (remaining + perChunk - 1) / perChunk));
+                }
+                if (firstRow[counted] < rows) {
+                    throw new IOException("expected " + wordCount + " rows, found " + firstRow[counted]);
+                }
+
+                List<Future<Integer>> parsed = new ArrayList<>(counted);
+                for (int c = 0; c < counted && firstRow[c] < rows; c++) {
+                    long start = bounds[c];
+                    long end = bounds[c + 1];
+                    int row = firstRow[c];
+                    parsed.add(executor.submit(() -> parseChunk(readChunk(channel, start, end), row, rows, dim,
+                                                                consumer)));
+                }
+                for (Future<Integer> future : parsed) {
+                    get(future);
+                }
+            } finally {
+                executor.shutdown();
+            }
+            return rows;
+        }
+    }
+
+    /**
+     * 块的边界，除首尾外每个边界都在换行符之后
+     */
+    private static long[] chunkBounds(FileChannel channel, long begin, long size) throws IOException {
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(begin);
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        long pos = begin + CHUNK_SIZE;
+        while (pos < size) {
+            long newline = -1;
+            for (long p = pos; newline < 0 && p < size; p += buf.capacity()) {
+                buf.clear();
+                channel.read(buf, p);
+                for (int i = 0; i < buf.position(); i++) {
+                    if (buf.get(i) == '\n') {
+                        newline = p + i;
+                        break;
+                    }
+                }
+            }
+            if (newline < 0 || newline + 1 >= size) {
+                break;
+            }
+            bounds.add(newline + 1);
+            pos = newline + 1 + CHUNK_SIZE;
+        }
+        bounds.add(size);
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    private static byte[] readChunk(FileChannel channel, long start, long end) throws IOException {
+        byte[] bytes = new byte[(int) (end - start)];
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, start + buf.position()) < 0) {
+                throw new IOException("unexpected end of file");
+            }
+        }
+        return bytes;
+    }
+
+    private static int countLines(byte[] bytes) {
+        int lines = 0;
+        int lineStart = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == '\n') {
+                if (!isBlank(bytes, lineStart, i)) {
+                    lines++;
+                }
+                lineStart = i + 1;
+            }
+        }
+        if (!isBlank(bytes, lineStart, bytes.length)) {
+            lines++;
+        }
+        return lines;
+    }
+
+    private static boolean isBlank(byte[] bytes, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!isSpace(bytes[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * byte是有符号的，UTF-8多字节字符的每个字节都是负数，必须按无符号比较
+     */
+    private static boolean isSpace(byte b) {
+        return (b & 0xff) <= ' ';
+    }
+
+    private static int parseChunk(byte[] bytes, int row, int rows, int dim, RowConsumer consumer) throws IOException {
+        float[] vec = new float[dim];
+        int pos = 0;
+        int parsed = 0;
+        while (pos < bytes.length && row < rows) {
+            int end = pos;
+            while (end < bytes.length && bytes[end] != '\n') {
+                end++;
+            }
+            if (!isBlank(bytes, pos, end)) {
+                int p = skipSpaces(bytes, pos, end);
+                int wordEnd = p;
+                while (wordEnd < end && !isSpace(bytes[wordEnd])) {
+                    wordEnd++;
+                }
+                String word = new String(bytes, p, wordEnd - p, StandardCharsets.UTF_8);
+                p = wordEnd;
+                for (int j = 0; j < dim; j++) {
+                    p = skipSpaces(bytes, p, end);
+                    int tokenEnd = p;
+                    while (tokenEnd < end && !isSpace(bytes[tokenEnd])) {
+                        tokenEnd++;
+                    }
+                    if (tokenEnd == p) {
+                        throw new IOException("row " + row + " (" + word + ") has " + j + " values, expected " + dim);
+                    }
+                    vec[j] = parseFloat(bytes, p, tokenEnd);
+                    p = tokenEnd;
+                }
+                consumer.accept(row++, word, vec);
+                parsed++;
+            }
+            pos = end + 1;
+        }
+        return parsed;
+    }
+
+    private static int skipSpaces(byte[] bytes, int pos, int end) {
+        while (pos < end && isSpace(bytes[pos])) {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * 十进制浮点数解析，有效数字不超过15位且指数不超过22时直接用double计算，
+     * 结果与Float.parseFloat相同(除极少数double再舍入到float的情况差1ulp)，其余情况交给Float.parseFloat
+     */
+    static float parseFloat(byte[] bytes, int start, int end) {
+        int p = start;
+        boolean negative = false;
+        if (p < end && (bytes[p] == '-' || bytes[p] == '+')) {
+            negative = bytes[p] == '-';
+            p++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exp = 0;
+        boolean any = false;
+        while (p < end && bytes[p] >= '0' && bytes[p] <= '9') {
+            if (digits > 0 || bytes[p] != '0') {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (bytes[p] - '0');
+                } else {
+                    exp++;
+                }
+                digits++;
+            }
+            any = true;
+            p++;
+        }
+        if (p < end && bytes[p] == '.') {
+            p++;
+            while (p < end && bytes[p] >= '0' && bytes[p] <= '9') {
+                if (digits > 0 || bytes[p] != '0') {
+                    if (digits < 18) {
+                        mantissa = mantissa * 10 + (bytes[p] - '0');
+                        exp--;
+                    }
+                    digits++;
+                } else {
+                    exp--;
+                }
+                any = true;
+                p++;
+            }
+        }
+        if (any && p < end && (bytes[p] == 'e' || bytes[p] == 'E')) {
+            p++;
+            boolean expNegative = false;
+            if (p < end && (bytes[p] == '-' || bytes[p] == '+')) {
+                expNegative = bytes[p] == '-';
+                p++;
+            }
+            int e = 0;
+            boolean expAny = false;
+            while (p < end && bytes[p] >= '0' && bytes[p] <= '9') {
+                if (e < 10000) {
+                    e = e * 10 + (bytes[p] - '0');
+                }
+                expAny = true;
+                p++;
+            }
+            if (!expAny) {
+                any = false;
+            }
+            exp += expNegative ? -e : e;
+        }
+        if (!any || p != end || digits > 15 || exp > 22 || exp < -22) {
+            return Float.parseFloat(new String(bytes, start, end - start, StandardCharsets.ISO_8859_1));
+        }
+        double value = exp >= 0 ? mantissa * POW10[exp] : mantissa / POW10[-exp];
+        return (float) (negative ? -value : value);
+    }
+
+    public static void write(String path, int rows, int dim, RowSource source) throws IOException {
+        write(path, rows, dim, source, DEFAULT_THREADS, EXACT_DIGITS);
+    }
+
+    /**
+     * @param digits 小数位数，C_DIGITS与C版本word2vec的输出相同但有舍入误差；
+     *               EXACT_DIGITS输出9位有效数字，读回的值与原值相同，增量训练重新加载的模型应使用它
+     */
+    public static void write(String path, int rows, int dim, RowSource source, int threads, int digits)
+            throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try (FileOutputStream out = new FileOutputStream(path)) {
+            FileChannel channel = out.getChannel();
+            writeFully(channel, (rows + " " + dim + "\n").getBytes(StandardCharsets.UTF_8));
+            // 最多同时格式化2*threads块，按提交顺序写出
+            ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+            int nextRow = 0;
+            while (nextRow < rows || !pending.isEmpty()) {
+                while (nextRow < rows && pending.size() < 2 * Math.max(1, threads)) {
+                    int from = nextRow;
+                    int to = Math.min(rows, from + WRITE_BLOCK_ROWS);
+                    pending.add(executor.submit(() -> formatRows(source, from, to, dim, digits)));
+                    nextRow = to;
+                }
+                writeFully(channel, get(pending.poll()));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    private static byte[] formatRows(RowSource source, int from, int to, int dim, int digits) {
+        float[] vec = new float[dim];
+        ByteBuilder sb = new ByteBuilder((to - from) * (dim * (digits < 0 ? 16 : digits + 4) + 32));
+        for (int row = from; row < to; row++) {
+            sb.append(source.word(row).getBytes(StandardCharsets.UTF_8));
+            source.vector(row, vec);
+            for (float f : vec) {
+                sb.append((byte) ' ');
+                formatFloat(f, digits, sb);
+            }
+            sb.append((byte) '\n');
+        }
+        return sb.toBytes();
+    }
+
+    /**
+     * 定点格式，保留digits位小数，同printf("%.6f")；digits小于0或绝对值很大时用formatExact，非有限值用Float.toString
+     */
+    static void formatFloat(float f, int digits, ByteBuilder out) {
+        double v = Math.abs((double) f);
+        if (!(v <= Float.MAX_VALUE)) {
+            out.append(Float.toString(f).getBytes(StandardCharsets.ISO_8859_1));
+            return;
+        }
+        if (digits < 0 || v >= 1e9 || digits > 9) {
+            formatExact(f, out);
+            return;
+        }
+        long scale = LONG_POW10[digits];
+        long scaled = Math.round(v * scale);
+        if (f < 0 && scaled != 0) {
+            out.append((byte) '-');
+        }
+        out.appendLong(scaled / scale);
+        if (digits > 0) {
+            out.append((byte) '.');
+            long frac = scaled % scale;
+            for (long d = scale / 10; d > 0; d /= 10) {
+                out.append((byte) ('0' + frac / d % 10));
+            }
+        }
+    }
+
+    /**
+     * 9位有效数字的科学计数法(同printf("%.8e")，去掉末尾的0)，任何有限的float读回后都与原值相同。
+     * 9位有效数字的间隔最大是值的1e-8，而float相邻两个值的间隔至少是值的2^-24，
+     * 所以在double中计算时末位差1也仍然落在原值的舍入区间内
+     */
+    static void formatExact(float f, ByteBuilder out) {
+        if (f < 0 || (f == 0 && 1 / f < 0)) {
+            out.append((byte) '-');
+        }
+        double v = Math.abs((double) f);
+        if (v == 0) {
+            out.append((byte) '0');
+            return;
+        }
+        // 10^exp <= v < 10^(exp+2)，按二进制指数估计，float的非规格化数在double中是规格化的
+        int exp = (int) Math.floor(Math.getExponent(v) * 0.30102999566398120);
+        long mantissa = Math.round(v * SCALE[SCALE_BIAS + 8 - exp]);
+        if (mantissa >= 1000000000L) {
+            exp++;
+            mantissa = Math.round(v * SCALE[SCALE_BIAS + 8 - exp]);
+        }
+        if (mantissa >= 1000000000L) {
+            // 9.999999995这样的值进位
+            exp++;
+            mantissa /= 10;
+        }
+        int len = 9;
+        while (len > 1 && mantissa % 10 == 0) {
+            mantissa /= 10;
+            len--;
+        }
+        out.ensure(len + 6);
+        byte[] buf = out.buf;
+        int pos = out.size;
+        for (int i = len; i > 0; i--) {
+            // 第一位后面留出小数点的位置
+            buf[pos + (i > 1 ? i : 0)] = (byte) ('0' + mantissa % 10);
+            mantissa /= 10;
+        }
+        if (len > 1) {
+            buf[pos + 1] = '.';
+            pos += len + 1;
+        } else {
+            pos++;
+        }
+        buf[pos++] = 'e';
+        buf[pos++] = (byte) (exp < 0 ? '-' : '+');
+        int absExp = Math.abs(exp);
+        if (absExp >= 10) {
+            buf[pos++] = (byte) ('0' + absExp / 10);
+        } else {
+            buf[pos++] = '0';
+        }
+        buf[pos++] = (byte) ('0' + absExp % 10);
+        out.size = pos;
+    }
+
+    static class ByteBuilder {
+        private byte[] buf;
+        private int size;
+
+        ByteBuilder(int capacity) {
+            buf = new byte[Math.max(16, capacity)];
+        }
+
+        void append(byte b) {
+            ensure(1);
+            buf[size++] = b;
+        }
+
+        void append(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, size, bytes.length);
+            size += bytes.length;
+        }
+
+        void appendLong(long v) {
+            if (v == 0) {
+                append((byte) '0');
+                return;
+            }
+            ensure(19);
+            int len = 0;
+            for (long t = v; t > 0; t /= 10) {
+                len++;
+            }
+            for (int i = size + len - 1; i >= size; i--) {
+                buf[i] = (byte) ('0' + v % 10);
+                v /= 10;
+            }
+            size += len;
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+            }
+        }
+
+        byte[] toBytes() {
+            return Arrays.copyOf(buf, size);
+        }
+    }
+
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+}
@@ -4,22 +4,32 @@ import training.Trainer.Method;
 import huffman.HuffmanNode;
 import huffman.WordNode;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
 
 import static utils.MathUtils.*;
 
-public class ThreadTrainer implements Runnable {
-	
-	public static final List<String> END_SENTENCE = Collections.unmodifiableList(new ArrayList<>());
+/**
+ * 一块语料的训练任务，在ForkJoinPool中执行。句子数超过SPLIT_THRESHOLD时一分为二，
+ * 空闲的线程可以窃取另一半，慢的块不会让其他核在每轮末尾空等。
+ * 学习率按所有任务共享的已训练词数计算
+ */
+public class ThreadTrainer extends RecursiveAction {
 
-	private static Map<String, WordNode> wordNodeMap;
+	private static final long serialVersionUID = 1L;
+	private static final int SPLIT_THRESHOLD = 16;
+	private static final List<HuffmanNode> EMPTY_PATH = Collections.emptyList();
+
+	private static WordNode[] vocab;
+    private static float[] syn0;        // 输入向量，第id行从id * vectorDim开始，用vocab[id]作锁
+    private static float[] syn1neg;     // 负采样的输出向量，同样按id排列，用negLocks[id]作锁
+    private static Object[] negLocks;
     private static int vectorDim;
     private static int corpusLen;
     private static double initialAlpha;
@@ -27,11 +37,37 @@ public class ThreadTrainer implements Runnable {
     private static Method trainMethod;
     private static HuffmanNode root;
     private static int iter;
-    
-    public static void initParams(Map<String, WordNode> wordNodeMap, int vectorDim, 
+    private static boolean hierarchicalSoftmax;
+    private static int negative;
+    private static WordNode[] unigram;
+    private static boolean minibatch;
+
+    // 所有任务共享的计数器
+    private static final AtomicLong wordsTrained = new AtomicLong(0);
+    private static final DoubleAdder totalLoss = new DoubleAdder();
+    private static final LongAdder totalLossCount = new LongAdder();
+    private static final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * @param vocab   按词的id排列的词表，句子中存放的是id
+     * @param syn0    输入向量矩阵，vocab.length * vectorDim
+     * @param syn1neg 负采样的输出向量矩阵，不使用负采样时为null
+     */
+    public static void initParams(WordNode[] vocab, float[] syn0, float[] syn1neg, int vectorDim,
     		                      int corpusLen, int windowSize, double initAlpha, 
-    							  Method trainMethod, HuffmanNode root, int iter) {
-    	ThreadTrainer.wordNodeMap = wordNodeMap;
+    							  Method trainMethod, HuffmanNode root, int iter,
+    							  boolean hierarchicalSoftmax, int negative, WordNode[] unigram,
+    							  boolean minibatch) {
+    	ThreadTrainer.vocab = vocab;
+    	ThreadTrainer.syn0 = syn0;
+    	ThreadTrainer.syn1neg = syn1neg;
+    	negLocks = null;
+    	if (negative > 0) {
+    	    negLocks = new Object[vocab.length];
+    	    for (int i = 0; i < negLocks.length; i++) {
+    	        negLocks[i] = new Object();
+    	    }
+    	}
     	ThreadTrainer.vectorDim = vectorDim;
     	ThreadTrainer.corpusLen = corpusLen;
     	ThreadTrainer.windowSize = windowSize;
@@ -39,30 +75,103 @@ public class ThreadTrainer implements Runnable {
     	ThreadTrainer.trainMethod = trainMethod;
     	ThreadTrainer.root = root;
     	ThreadTrainer.iter = iter;
+    	ThreadTrainer.hierarchicalSoftmax = hierarchicalSoftmax;
+    	ThreadTrainer.negative = negative;
+    	ThreadTrainer.unigram = unigram;
+    	ThreadTrainer.minibatch = minibatch;
+    	wordsTrained.set(0);
+    	totalLoss.reset();
+    	totalLossCount.reset();
+    	failure.set(null);
+    }
+
+    /**
+     * 已训练的原始词数(包括被下采样丢弃的)，所有轮次累计
+     */
+    public static long getWordsTrained() {
+        return wordsTrained.get();
+    }
+
+    /**
+     * 累计的-log(p)之和，层次softmax每个路径节点、负采样每个样本各算一次
+     */
+    public static double getTotalLoss() {
+        return totalLoss.sum();
     }
 
-    private BlockingQueue<List<String>> corpusQueue;
-    private CountDownLatch latch;
+    public static long getTotalLossCount() {
+        return totalLossCount.sum();
+    }
+
+    /**
+     * @return 第一个失败的任务抛出的异常，没有则为null
+     */
+    public static Throwable getFailure() {
+        return failure.get();
+    }
+
+    private final int[][] sentences;
+    private final int[] rawCounts;      // 每个句子对应的原始词数，用于推进学习率
+    private final int from;
+    private final int to;
+    private final Runnable onComplete;  // 只有根任务有，完成(包括失败)时调用
+    // 叶子任务内累计，结束时加到totalLoss
+    private double loss = 0;
+    private long lossCount = 0;
+
+    public ThreadTrainer(int[][] sentences, int[] rawCounts, Runnable onComplete) {
+        this(sentences, rawCounts, 0, sentences.length, onComplete);
+    }
+
+    private ThreadTrainer(int[][] sentences, int[] rawCounts, int from, int to, Runnable onComplete) {
+        this.sentences = sentences;
+        this.rawCounts = rawCounts;
+        this.from = from;
+        this.to = to;
+        this.onComplete = onComplete;
+    }
 
-    public ThreadTrainer(BlockingQueue<List<String>> corpusQueue, CountDownLatch latch) {
-        this.corpusQueue = corpusQueue;
-        this.latch = latch;
+    /**
+     * @param x     输出层的内积
+     * @param label 1为正样本(Huffman编码0)，0为负样本
+     */
+    private void addLoss(double x, int label) {
+        loss -= logSigmoid(label == 1 ? x : -x);
+        lossCount++;
+    }
+
+    private static volatile double currentAlpha;
+    private static volatile double currentProgress;
+
+    public static double getCurrentAlpha() {
+        return currentAlpha;
+    }
+
+    /**
+     * @return 训练进度，0到1
+     */
+    public static double getCurrentProgress() {
+        return currentProgress;
     }
 
     private double computeAlpha(long totalTrained) {
         double alpha = Math.max(initialAlpha * (1 - totalTrained / (double) (iter*corpusLen + 1)), 
         						initialAlpha * 0.0001);	// threshold
+        currentAlpha = alpha;
+        currentProgress = totalTrained / (double) (iter * corpusLen + 1);
         System.out.print(String.format("\rAlpha: %f  Process: %.2f%%",
-                		 alpha, 100 * totalTrained / (double) (iter * corpusLen + 1)));
+                		 alpha, 100 * currentProgress));
         System.out.flush();
         return alpha;
     }
 
-    private void training(List<String> sentence, double alpha) {
-        for (int index = 0; index < sentence.size(); index++) {
+    private void training(int[] sentence, double alpha) {
+        for (int index = 0; index < sentence.length; index++) {
             int extractedWordNum = random(0, windowSize-1);
             if (trainMethod == Trainer.Method.CBow) {
                 cbowGram(index, sentence, extractedWordNum, alpha);
+            } else if (minibatch) {
+                batchSkipGram(index, sentence, extractedWordNum, alpha);
             } else {
                 skipGram(index, sentence, extractedWordNum, alpha);
             }
@@ -70,44 +179,53 @@ public class ThreadTrainer implements Runnable {
     }
 
     @Override
-    public void run() {
+    protected void compute() {
         try {
-            while (true) {
-                List<String> sentence = corpusQueue.poll(10, TimeUnit.SECONDS);
-                if (sentence != null) {
-	                if (sentence != END_SENTENCE) {
-	                    double alpha = computeAlpha(Long.parseLong(sentence.get(sentence.size()-1)));
-	                    sentence.remove(sentence.size()-1);
-	                    training(sentence, alpha);
-	                } else {
-	                	corpusQueue.add(END_SENTENCE);
-	                	latch.countDown();
-	                	break;
-	                }
+            if (to - from > SPLIT_THRESHOLD) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ThreadTrainer(sentences, rawCounts, from, mid, null),
+                          new ThreadTrainer(sentences, rawCounts, mid, to, null));
+            } else {
+                for (int i = from; i < to; i++) {
+                    training(sentences[i], computeAlpha(wordsTrained.get()));
+                    wordsTrained.addAndGet(rawCounts[i]);
                 }
+                totalLoss.add(loss);
+                totalLossCount.add(lossCount);
+            }
+        } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+            throw t;
+        } finally {
+            if (onComplete != null) {
+                onComplete.run();
             }
-            System.out.println(Thread.currentThread() + ": " + latch.getCount());
-        } catch (Exception e) {
-        	e.printStackTrace(System.err);
         }
     }
 
-    private void skipGram(int index, List<String> sentence, int extractedNum, double alpha) {
-        WordNode word = wordNodeMap.get(sentence.get(index));
+    private static WordNode sampleNegative() {
+        return unigram[(int) ((random() >>> 16) % unigram.length)];
+    }
+
+    private void skipGram(int index, int[] sentence, int extractedNum, double alpha) {
+        WordNode word = vocab[sentence[index]];
         
         int contextLowerBound = Math.max(0, index - windowSize + extractedNum);
-        int contextUpperBound = Math.min(sentence.size()-1, index + windowSize - extractedNum);
+        int contextUpperBound = Math.min(sentence.length-1, index + windowSize - extractedNum);
         for (int i = contextLowerBound; i <= contextUpperBound; i++) {
         	if (i != index) {
 	            float[] neu1e = new float[vectorDim];
 	            Arrays.fill(neu1e, 0);
-	            //Hierarchical Softmax
-	            float[] contextWordVec = wordNodeMap.get(sentence.get(i)).getVector();
-	            synchronized (contextWordVec) {
-		            for (HuffmanNode pathNode : word.findPath(root)){
+	            int contextRow = sentence[i] * vectorDim;
+	            synchronized (vocab[sentence[i]]) {
+	                // 持有锁期间这一行不会被其他线程修改，拷贝出来参与计算
+	                float[] contextWordVec = Arrays.copyOfRange(syn0, contextRow, contextRow + vectorDim);
+		            //Hierarchical Softmax
+		            for (HuffmanNode pathNode : hierarchicalSoftmax ? word.findPath(root) : EMPTY_PATH){
 		                float[] parentVec = pathNode.getParent().getVector();
 		                synchronized (parentVec) {
 			                double f = dotProduct(contextWordVec, parentVec);
+			                addLoss(f, 1 - pathNode.getCode());
 			                // Propagate hidden -> output
 			                f = sigmoid(f);
 			                if (f == 0 || f == 1) {
@@ -121,27 +239,42 @@ public class ThreadTrainer implements Runnable {
 			                vectorAcc(parentVec, vectorScale(contextWordVec, g));
 		                }
 		            }
+		            //Negative Sampling
+		            for (int d = 0; negative > 0 && d <= negative; d++) {
+		                WordNode target = d == 0 ? word : sampleNegative();
+		                if (d > 0 && target == word) {
+		                    continue;
+		                }
+		                int targetRow = target.getIndex() * vectorDim;
+		                synchronized (negLocks[target.getIndex()]) {
+		                    double f = dotProduct(contextWordVec, syn1neg, targetRow);
+		                    addLoss(f, d == 0 ? 1 : 0);
+		                    f = sigmoid(f);
+		                    double g = ((d == 0 ? 1 : 0) - f) * alpha;
+		                    vectorAcc(neu1e, syn1neg, targetRow, g);
+		                    rowAcc(syn1neg, targetRow, contextWordVec, g);
+		                }
+		            }
 		            // Learn weights input -> hidden
-		            vectorAcc(contextWordVec, neu1e);
+		            rowAcc(syn0, contextRow, neu1e, 1);
 	            }
         	}
         }
     }
 
-    private void cbowGram(int index, List<String> sentence, int extractedNum, double alpha) {
-        WordNode word = wordNodeMap.get(sentence.get(index));
+    private void cbowGram(int index, int[] sentence, int extractedNum, double alpha) {
+        WordNode word = vocab[sentence[index]];
 
         int contextLowerBound = Math.max(0, index - windowSize + extractedNum);
-        int contextUpperBound = Math.min(sentence.size()-1, index + windowSize - extractedNum);
+        int contextUpperBound = Math.min(sentence.length-1, index + windowSize - extractedNum);
         if (contextUpperBound - contextLowerBound <= 0)
         	return;
         float[] neu1 = new float[vectorDim];
         Arrays.fill(neu1, 0);
         for (int i = contextLowerBound; i <= contextUpperBound; i++) {
         	if (i != index) {
-	        	float[] contextWordVec = wordNodeMap.get(sentence.get(i)).getVector();
-            	synchronized (contextWordVec) {
-                    vectorAcc(neu1, contextWordVec);
+            	synchronized (vocab[sentence[i]]) {
+                    vectorAcc(neu1, syn0, sentence[i] * vectorDim, 1);
             	}
         	}
         }
@@ -150,9 +283,10 @@ public class ThreadTrainer implements Runnable {
         float[] neu1e = new float[vectorDim];
         Arrays.fill(neu1e, 0);
         
-        for (HuffmanNode pathNode : word.findPath(root)) {
+        for (HuffmanNode pathNode : hierarchicalSoftmax ? word.findPath(root) : EMPTY_PATH) {
             // Propagate hidden -> output
         	double f = dotProduct(neu1, pathNode.getParent().getVector());
+            addLoss(f, 1 - pathNode.getCode());
             f = sigmoid(f);
             if (f == 0 || f == 1) {
                 continue;
@@ -167,13 +301,110 @@ public class ThreadTrainer implements Runnable {
 	            vectorAcc(parentVec, vectorScale(neu1, g));
             }
         }
+        //Negative Sampling
+        for (int d = 0; negative > 0 && d <= negative; d++) {
+            WordNode target = d == 0 ? word : sampleNegative();
+            if (d > 0 && target == word) {
+                continue;
+            }
+            int targetRow = target.getIndex() * vectorDim;
+            synchronized (negLocks[target.getIndex()]) {
+                double f = dotProduct(neu1, syn1neg, targetRow);
+                addLoss(f, d == 0 ? 1 : 0);
+                f = sigmoid(f);
+                double g = ((d == 0 ? 1 : 0) - f) * alpha;
+                vectorAcc(neu1e, syn1neg, targetRow, g);
+                rowAcc(syn1neg, targetRow, neu1, g);
+            }
+        }
         for (int i = contextLowerBound; i <= contextUpperBound; i++) {
         	if (i != index) {
-	        	float[] contextWordVec = wordNodeMap.get(sentence.get(i)).getVector();
-	        	synchronized (contextWordVec) {
-	                vectorAcc(contextWordVec, neu1e);
+	        	synchronized (vocab[sentence[i]]) {
+	                rowAcc(syn0, sentence[i] * vectorDim, neu1e, 1);
 	        	}
         	}
         }
     }
+
+    /**
+     * 一个窗口内的所有上下文词共享同一组负样本，更新变成小矩阵乘法:
+     * 上下文矩阵 C(n*d)，输出矩阵 O(m*d) = 中心词 + negative个负样本，
+     * G = (label - sigmoid(C * O^T)) * alpha，C += G * O，O += G^T * C
+     */
+    private void batchSkipGram(int index, int[] sentence, int extractedNum, double alpha) {
+        WordNode word = vocab[sentence[index]];
+
+        int contextLowerBound = Math.max(0, index - windowSize + extractedNum);
+        int contextUpperBound = Math.min(sentence.length-1, index + windowSize - extractedNum);
+        int n = contextUpperBound - contextLowerBound;
+        if (n <= 0) {
+            return;
+        }
+        int[] inputs = new int[n];
+        float[] in = new float[n * vectorDim];
+        int row = 0;
+        for (int i = contextLowerBound; i <= contextUpperBound; i++) {
+            if (i != index) {
+                synchronized (vocab[sentence[i]]) {
+                    System.arraycopy(syn0, sentence[i] * vectorDim, in, row * vectorDim, vectorDim);
+                }
+                inputs[row++] = sentence[i];
+            }
+        }
+
+        int m = negative + 1;
+        int[] outputs = new int[m];     // 与中心词相同而跳过的负样本为-1
+        float[] out = new float[m * vectorDim];
+        for (int d = 0; d < m; d++) {
+            WordNode target = d == 0 ? word : sampleNegative();
+            if (d > 0 && target == word) {
+                outputs[d] = -1;
+                continue;
+            }
+            outputs[d] = target.getIndex();
+            synchronized (negLocks[outputs[d]]) {
+                System.arraycopy(syn1neg, outputs[d] * vectorDim, out, d * vectorDim, vectorDim);
+            }
+        }
+
+        float[] grad = new float[n * m];
+        matMulTransB(in, out, n, m, vectorDim, grad);
+        for (int i = 0; i < n; i++) {
+            for (int d = 0; d < m; d++) {
+                int k = i * m + d;
+                if (outputs[d] < 0) {
+                    grad[k] = 0;
+                } else {
+                    addLoss(grad[k], d == 0 ? 1 : 0);
+                    grad[k] = (float) (((d == 0 ? 1 : 0) - sigmoid(grad[k])) * alpha);
+                }
+            }
+        }
+        float[] inGrad = new float[n * vectorDim];
+        matMulAcc(grad, out, n, m, vectorDim, inGrad);
+        float[] outGrad = new float[m * vectorDim];
+        matMulTransAAcc(grad, in, n, m, vectorDim, outGrad);
+
+        for (int d = 0; d < m; d++) {
+            if (outputs[d] >= 0) {
+                synchronized (negLocks[outputs[d]]) {
+                    addRow(syn1neg, outputs[d] * vectorDim, outGrad, d * vectorDim);
+                }
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            synchronized (vocab[inputs[i]]) {
+                addRow(syn0, inputs[i] * vectorDim, inGrad, i * vectorDim);
+            }
+        }
+    }
+
+    /**
+     * matrix中从offset开始的一行加上block中从blockOffset开始的一行
+     */
+    private static void addRow(float[] matrix, int offset, float[] block, int blockOffset) {
+        for (int k = 0; k < vectorDim; k++) {
+            matrix[offset + k] += block[blockOffset + k];
+        }
+    }
 }
@@ -2,31 +2,46 @@ package training;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Scanner;
 import java.util.StringTokenizer;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
+import corpus.CorpusSource;
+import corpus.FileSource;
+import corpus.LineIterator;
 import utils.MathUtils;
+import utils.WordHash;
 import huffman.HuffmanNode;
 import huffman.HuffmanTree;
 import huffman.WordNode;
 
 public class Trainer {
 
+    private static final int UNIGRAM_TABLE_SIZE = 1 << 24;
+    // 每个训练块大约包含的词数，以及每个线程最多同时提交的块数
+    private static final int CHUNK_WORDS = 10000;
+    private static final int CHUNKS_PER_THREAD = 4;
+    private static final String PHRASE_SUFFIX = ".phrases";
+    private static final String NEG_SUFFIX = ".neg";
+
     public enum Method {
         CBow, SKIP_GRAM
     }
@@ -38,9 +53,26 @@ public class Trainer {
     private int negativeSample;
     private double initialAlpha;  // 初始学习率
     private int freqThreshold = 5;
+    private long vocabMemory;   // 统计词频时的内存上限(字节)，0表示不限制
+    private double earlyStopThreshold;  // 每轮平均损失的相对下降小于该值时停止，0表示不提前停止
+    private double phraseThreshold;     // 短语检测的分数阈值，0表示不检测
+    private int phrasePasses;
+    private List<PhraseDetector> phrases = Collections.emptyList();    // 最近一次训练检测出的短语，按遍的顺序
+    private int hashBuckets;            // 哈希词表的桶数，0表示按词建词表
+    private List<Double> epochLosses = new ArrayList<>();
+    private volatile double lastEpochLoss = Double.NaN;
+    private long trainingNanos;     // 最近一次训练各轮本身的耗时，不含建词表和初始化
+    private List<String> probeWords;
+    private long probeInterval;     // 秒
+    private ExecutorService snapshotExecutor;
 
-    private Map<String, WordNode> wordNodeMap;
-    private List<String> unigram;
+    private Map<String, WordNode> wordNodeMap;    // 按词频降序迭代，哈希词表时为null
+    private WordNode[] vocab;                     // 按id排列，哈希词表时id即桶号
+    private float[] syn0;       // 输入向量，vocab.length * vectorSize，第id行是id号词的向量
+    private float[] syn1neg;    // 负采样的输出向量，按同样的顺序排列，不用负采样时为null
+    private boolean hierarchicalSoftmax;
+    private boolean minibatch;  // skip-gram的窗口内共享负样本，按矩阵乘法更新
+    private WordNode[] unigram;
     private int corpusLen;     // 语料中的总词数
     private int threadNum;        // 线程个数
     private int iter;
@@ -53,10 +85,19 @@ public class Trainer {
         private Method trainMethod = Method.SKIP_GRAM;
         private double sample = 1e-4;
         private int negativeSample = 0;
+        private boolean hierarchicalSoftmax = true;
+        private boolean minibatch = false;
         private double alpha = 0.05;
-        private int numOfThread = 1;
+        private int numOfThread = Runtime.getRuntime().availableProcessors();
         private int iter = 15;
         private int maxSentenceLen = 1000;
+        private long vocabMemory = 0;
+        private double earlyStopThreshold = 0;
+        private double phraseThreshold = 0;
+        private int phrasePasses = 1;
+        private int hashBuckets = 0;
+        private List<String> probeWords = new ArrayList<>();
+        private long probeInterval = 0;
 
         public TrainerBuilder setVectorSize(int size) {
             vectorSize = size;
@@ -88,6 +129,19 @@ public class Trainer {
             return this;
         }
 
+        public TrainerBuilder setHierarchicalSoftmax(boolean hierarchicalSoftmax) {
+            this.hierarchicalSoftmax = hierarchicalSoftmax;
+            return this;
+        }
+
+        /**
+         * 只用于SKIP_GRAM且negativeSample大于0，并且要关闭层次softmax(minibatch不训练Huffman树)
+         */
+        public TrainerBuilder setMinibatch(boolean minibatch) {
+            this.minibatch = minibatch;
+            return this;
+        }
+
         public TrainerBuilder setAlpha(double alpha) {
             this.alpha = alpha;
             return this;
@@ -108,6 +162,61 @@ public class Trainer {
             return this;
         }
 
+        /**
+         * 统计词频的内存上限，超过时删除低频词，见VocabCounter；检测短语时一元词和二元词各用这么多
+         */
+        public TrainerBuilder setVocabMemory(long bytes) {
+            this.vocabMemory = bytes;
+            return this;
+        }
+
+        /**
+         * 一轮的平均损失比上一轮下降的比例小于threshold时提前结束训练
+         */
+        public TrainerBuilder setEarlyStopThreshold(double threshold) {
+            this.earlyStopThreshold = threshold;
+            return this;
+        }
+
+        /**
+         * 建词表前检测短语(word2phrase)，训练时把短语中的词用"_"连起来
+         *
+         * @param threshold 分数阈值，越大短语越少，C版本默认100；0表示不检测
+         */
+        public TrainerBuilder setPhraseThreshold(double threshold) {
+            phraseThreshold = threshold;
+            return this;
+        }
+
+        /**
+         * 检测短语的遍数，每一遍在上一遍合并后的语料上检测，可以得到更长的短语
+         */
+        public TrainerBuilder setPhrasePasses(int passes) {
+            phrasePasses = passes;
+            return this;
+        }
+
+        /**
+         * 哈希词表：词按哈希分到固定数量的桶，每个桶一个向量，词频按桶统计，
+         * 内存只与桶数有关，代价是冲突的词共用向量。freqThreshold不起作用，
+         * 输出的模型要用VectorModel.loadHashedFromFile加载
+         *
+         * @param buckets 桶数，0表示按词建词表
+         */
+        public TrainerBuilder setHashBuckets(int buckets) {
+            hashBuckets = buckets;
+            return this;
+        }
+
+        /**
+         * 训练过程中每隔intervalSeconds秒对当前向量做一次快照，输出这些词的近邻
+         */
+        public TrainerBuilder setProbe(long intervalSeconds, String... words) {
+            this.probeInterval = intervalSeconds;
+            this.probeWords = new ArrayList<>(Arrays.asList(words));
+            return this;
+        }
+
         public Trainer build() {
             return new Trainer(this);
         }
@@ -120,115 +229,534 @@ public class Trainer {
         trainMethod = trainerBuilder.trainMethod;
         subsampleRate = trainerBuilder.sample;
         negativeSample = trainerBuilder.negativeSample;
+        hierarchicalSoftmax = trainerBuilder.hierarchicalSoftmax;
+        minibatch = trainerBuilder.minibatch;
+        if (minibatch && (trainMethod != Method.SKIP_GRAM || negativeSample <= 0)) {
+            throw new IllegalArgumentException("minibatch requires SKIP_GRAM with negative sampling");
+        }
+        if (minibatch && hierarchicalSoftmax) {
+            throw new IllegalArgumentException("minibatch does not support hierarchical softmax, "
+                                               + "call setHierarchicalSoftmax(false)");
+        }
         initialAlpha = trainerBuilder.alpha;
         threadNum = trainerBuilder.numOfThread;
         iter = trainerBuilder.iter;
         corpusLen = 0;
         maxSentenceLen = trainerBuilder.maxSentenceLen;
+        vocabMemory = trainerBuilder.vocabMemory;
+        earlyStopThreshold = trainerBuilder.earlyStopThreshold;
+        probeWords = trainerBuilder.probeWords;
+        probeInterval = trainerBuilder.probeInterval;
+        phraseThreshold = trainerBuilder.phraseThreshold;
+        phrasePasses = trainerBuilder.phrasePasses;
+        hashBuckets = trainerBuilder.hashBuckets;
+    }
+
+    /**
+     * 在语料上检测phrasePasses遍短语，返回读取时合并短语的语料，原语料不变
+     */
+    private CorpusSource detectPhrases(CorpusSource source) throws IOException {
+        phrases = new ArrayList<>();
+        for (int i = 0; i < phrasePasses && phraseThreshold > 0; i++) {
+            PhraseDetector detector = PhraseDetector.learn(source, freqThreshold, phraseThreshold,
+                                                           vocabMemory, threadNum);
+            if (detector.size() == 0) {
+                break;
+            }
+            phrases.add(detector);
+            source = detector.apply(source);
+        }
+        return source;
+    }
+
+    private static CorpusSource applyPhrases(List<PhraseDetector> passes, CorpusSource source) {
+        for (PhraseDetector detector : passes) {
+            source = detector.apply(source);
+        }
+        return source;
+    }
+
+    private void buildVocabulary(CorpusSource source, String outputFile) throws Exception {
+        if (hashBuckets > 0) {
+            buildHashedVocabulary(source, outputFile);
+            return;
+        }
+        VocabCounter counter = VocabCounter.withMemoryBudget(vocabMemory);
+        corpusLen = countWords(source, counter);
+        System.out.println("Corpus size: " + corpusLen);
+        counter.report();
+        // 词频文件包含低于阈值的词，增量训练时这些词的计数可以继续累加
+        List<String> words = counter.wordsByFrequency(1);
+        Map<String, WordNode> nodes = new LinkedHashMap<>();
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(outputFile))) {
+            for (String word : words) {
+                int freq = counter.get(word);
+                if (freq >= freqThreshold) {
+                    addWordNode(nodes, word, freq);
+                }
+                bw.write(word + "\t" + freq + "\n");
+            }
+            System.out.println("Vocabulary size: " + nodes.size());
+        }
+        wordNodeMap = Collections.unmodifiableMap(nodes);
+        vocab = nodes.values().toArray(new WordNode[0]);
+        initVectors();
     }
 
-    private void buildVocabulary(String inputFile, String outputFile) throws Exception {
-        wordNodeMap = new HashMap<>(1 << 16);
-        try (BufferedReader br = new BufferedReader(new FileReader(inputFile))) {
+    /**
+     * 每个桶一个WordNode，词频为落在桶中的词数之和；桶的名字由Boyer-Moore多数投票选出
+     * (只需一个引用和一个计数)，桶中有词出现超过一半时一定是这个词，否则只是桶中的某个词。
+     * 没有词的桶名字为"#桶号"，向量置零，训练中不会被更新，VectorModel据此跳过这些桶。
+     * 输出的词表每行对应一个桶
+     */
+    private void buildHashedVocabulary(CorpusSource source, String outputFile) throws IOException {
+        int[] counts = new int[hashBuckets];
+        String[] candidates = new String[hashBuckets];
+        int[] votes = new int[hashBuckets];
+        int len = 0;
+        try (LineIterator it = source.open()) {
             String line;
-            corpusLen = 0;
-            while ((line = br.readLine()) != null) {
+            while ((line = it.nextLine()) != null) {
                 StringTokenizer st = new StringTokenizer(line);
                 while (st.hasMoreTokens()) {
-                    corpusLen++;
                     String word = st.nextToken();
-                    if (wordNodeMap.containsKey(word)) {
-                        WordNode node = wordNodeMap.get(word);
-                        node.setFrequency(node.getFrequency() + 1);
+                    int bucket = WordHash.bucket(word, hashBuckets);
+                    len++;
+                    counts[bucket]++;
+                    if (votes[bucket] == 0) {
+                        candidates[bucket] = word;
+                        votes[bucket] = 1;
+                    } else if (candidates[bucket].equals(word)) {
+                        votes[bucket]++;
                     } else {
-                        wordNodeMap.put(word, new WordNode(word, 1, vectorSize, negativeSample > 0));
+                        votes[bucket]--;
                     }
                 }
             }
         }
+        corpusLen = len;
         System.out.println("Corpus size: " + corpusLen);
+        WordNode[] nodes = new WordNode[hashBuckets];
         try (BufferedWriter bw = new BufferedWriter(new FileWriter(outputFile))) {
-            Iterator<Map.Entry<String, WordNode>> iterator = wordNodeMap.entrySet().iterator();
-            while (iterator.hasNext()) {
-                Map.Entry<String, WordNode> node = iterator.next();
-                if (node.getValue().getFrequency() < freqThreshold) {
-                    iterator.remove();
-                } else {
-                    bw.write(node.getKey() + "\t" + node.getValue().getFrequency() + "\n");
-                }
+            for (int i = 0; i < hashBuckets; i++) {
+                String name = candidates[i] != null ? candidates[i] : "#" + i;
+                nodes[i] = new WordNode(name, counts[i]);
+                nodes[i].setIndex(i);
+                bw.write(name + "\t" + counts[i] + "\n");
+            }
+        }
+        wordNodeMap = null;
+        vocab = nodes;
+        initVectors();
+        int used = 0;
+        for (int i = 0; i < hashBuckets; i++) {
+            if (counts[i] > 0) {
+                used++;
+            } else {
+                Arrays.fill(syn0, i * vectorSize, (i + 1) * vectorSize, 0);
             }
-            System.out.println("Vocabulary size: " + wordNodeMap.size());
         }
-        wordNodeMap = Collections.unmodifiableMap(wordNodeMap);
+        System.out.println("Hash buckets: " + hashBuckets + " (" + used + " used)");
     }
 
-    private void buildUnigram() throws Exception {
-        unigram = new ArrayList<>(1<<28);
+    /**
+     * @return 词的id，不在词表中返回-1；哈希词表时任何词都有对应的桶
+     */
+    private int wordId(String word) {
+        if (hashBuckets > 0) {
+            return WordHash.bucket(word, hashBuckets);
+        }
+        WordNode node = wordNodeMap.get(word);
+        return node == null ? -1 : node.getIndex();
+    }
+
+    /**
+     * 词按词频降序加入，id即加入的顺序
+     */
+    private WordNode addWordNode(Map<String, WordNode> nodes, String word, int freq) {
+        WordNode node = new WordNode(word, freq);
+        node.setIndex(nodes.size());
+        nodes.put(word, node);
+        return node;
+    }
+
+    /**
+     * 词表建好后按id分配两个连续的向量矩阵，高频词的行在内存中相邻。
+     * 输入向量随机初始化(同C版本)，输出向量从0开始
+     */
+    private void initVectors() {
+        if ((long) vocab.length * vectorSize > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("vocabulary of " + vocab.length + " words x " + vectorSize
+                                            + " dims does not fit in one array, raise freqThreshold or use hash buckets");
+        }
+        syn0 = new float[vocab.length * vectorSize];
+        for (int i = 0; i < syn0.length; i++) {
+            syn0[i] = (float) (MathUtils.randomOne() - 0.5) / vectorSize;
+        }
+        syn1neg = negativeSample > 0 ? new float[vocab.length * vectorSize] : null;
+    }
+
+    private void buildUnigram() {
+        unigram = new WordNode[UNIGRAM_TABLE_SIZE];
         double totalPower = 0.0;
-        for (WordNode wordNode : wordNodeMap.values()) {
+        for (WordNode wordNode : vocab) {
             totalPower += Math.pow(wordNode.getFrequency(), 0.75);
         }
         double aggregatePower = 0.0;
         int aggrIdx = 0;
-        double tableSize = unigram.size();
-        for (Map.Entry<String, WordNode> entry : wordNodeMap.entrySet()) {
-            do {
-                unigram.set(aggrIdx, entry.getKey());
-                aggrIdx++;
-            } while (aggregatePower >= aggrIdx / tableSize && aggrIdx < unigram.size());
-            aggregatePower += Math.pow(entry.getValue().getFrequency(), 0.75);
+        WordNode last = null;
+        for (WordNode wordNode : vocab) {
+            aggregatePower += Math.pow(wordNode.getFrequency(), 0.75) / totalPower;
+            int end = (int) Math.min(unigram.length, Math.round(aggregatePower * unigram.length));
+            while (aggrIdx < end) {
+                unigram[aggrIdx++] = wordNode;
+            }
+            last = wordNode;
+        }
+        while (aggrIdx < unigram.length) {
+            unigram[aggrIdx++] = last;
+        }
+    }
+
+    public int getCorpusLen() {
+        return corpusLen;
+    }
+
+    public int getIter() {
+        return iter;
+    }
+
+    /**
+     * 最近一次训练在各轮上花的秒数，不含建词表、短语检测和网络初始化
+     */
+    public double getTrainingSeconds() {
+        return trainingNanos / 1e9;
+    }
+
+    /**
+     * 最近一次训练每轮的平均损失
+     */
+    public List<Double> getEpochLosses() {
+        return Collections.unmodifiableList(epochLosses);
+    }
+
+    /**
+     * 当前输入向量的归一化快照，可以在训练进行中调用，不会暂停训练线程。
+     * 每个向量在它的锁内拷贝，所以每一行是某次更新后的完整状态，但不同行之间不是同一时刻
+     */
+    public VectorModel snapshot() {
+        WordNode[] nodes = vocab;
+        if (nodes == null) {
+            throw new IllegalStateException("vocabulary not built yet");
+        }
+        String[] words = new String[nodes.length];
+        float[] vectors = new float[words.length * vectorSize];
+        float[] matrix = syn0;
+        for (int row = 0; row < nodes.length; row++) {
+            words[row] = nodes[row].getWord();
+            // 训练线程以词的节点作为这一行的锁
+            synchronized (nodes[row]) {
+                System.arraycopy(matrix, row * vectorSize, vectors, row * vectorSize, vectorSize);
+            }
+            MathUtils.normalizeVector(vectors, row * vectorSize, vectorSize);
+        }
+        if (hashBuckets > 0) {
+            return VectorModel.hashed(words, vectors, vectorSize);
+        }
+        return new VectorModel(words, vectors, vectorSize);
+    }
+
+    /**
+     * 在后台线程中生成快照
+     */
+    public synchronized Future<VectorModel> snapshotAsync() {
+        if (snapshotExecutor == null) {
+            snapshotExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "model-snapshot");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return snapshotExecutor.submit(this::snapshot);
+    }
+
+    private void probe() {
+        try {
+            VectorModel model = snapshot();
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("\nProbe at alpha %f, process %.2f%%", ThreadTrainer.getCurrentAlpha(),
+                                    100 * ThreadTrainer.getCurrentProgress()));
+            if (!Double.isNaN(lastEpochLoss)) {
+                sb.append(String.format(", last epoch loss %.6f", lastEpochLoss));
+            }
+            for (String word : probeWords) {
+                sb.append("\n  ").append(word).append(": ").append(model.nearestTopN(word, 10));
+            }
+            System.out.println(sb);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
         }
     }
 
     public void training(String fileName, String tmpFileName) throws Exception {
-        buildVocabulary(fileName, tmpFileName);
-        HuffmanNode root = HuffmanTree.makeHuffmanTree(wordNodeMap.values(), negativeSample>0);
-
-        ThreadTrainer.initParams(wordNodeMap, vectorSize, corpusLen, windowSize, initialAlpha,
-                                 trainMethod, root, iter);
-        ExecutorService executor = Executors.newFixedThreadPool(threadNum);
-        BlockingQueue<List<String>> corpusQueue = new ArrayBlockingQueue<>(1000);
-        CountDownLatch latch = new CountDownLatch(threadNum);
-        for (int i = 0; i < threadNum; i++) {
-            executor.execute(new ThreadTrainer(corpusQueue, latch));
-        }
-        long totalCount = 0;
-        for (int i = 0; i < iter; i++) {
-            try (BufferedReader br = new BufferedReader(new FileReader(fileName))) {
-                String line;
-                while ((line = br.readLine()) != null) {
-                    List<String> sentence = new ArrayList<>(maxSentenceLen + 1);
-                    StringTokenizer st = new StringTokenizer(line);
-                    while (st.hasMoreTokens()) {
-                        String word = st.nextToken();
-                        totalCount++;
-                        // sentence中的单词都在wordNodeMap中
-                        if (wordNodeMap.containsKey(word) && subsampleRate > 0) {
-                            if (include(wordNodeMap.get(word).getFrequency())) {
-                                sentence.add(word);
-                                if (sentence.size() >= maxSentenceLen) {
-                                    sentence.add(String.valueOf(totalCount));
-                                    corpusQueue.put(sentence);
-                                    sentence = new ArrayList<>(maxSentenceLen + 1);
+        training(new FileSource(fileName), tmpFileName);
+    }
+
+    /**
+     * @param source      语料来源，会被扫描iter+1遍，检测短语时再加phrasePasses遍
+     * @param tmpFileName 词频输出 (word\tfreq)，包含低于阈值的词，可作为增量训练的vocabFile；
+     *                    检测了短语时，短语另存为tmpFileName + ".phrases"
+     */
+    public void training(CorpusSource source, String tmpFileName) throws Exception {
+        source = detectPhrases(source);
+        buildVocabulary(source, tmpFileName);
+        File phraseFile = new File(tmpFileName + PHRASE_SUFFIX);
+        if (!phrases.isEmpty()) {
+            PhraseDetector.save(phrases, phraseFile.getPath());
+        } else if (phraseFile.exists() && !phraseFile.delete()) {
+            // 上次训练留下的短语不能用于这次的模型
+            throw new IOException("Failed to delete stale " + phraseFile);
+        }
+        trainCorpus(source, corpusLen, initialAlpha);
+    }
+
+    public void incrementalTraining(String modelFile, String vocabFile, String deltaFile,
+                                    String newVocabFile, double alpha) throws Exception {
+        incrementalTraining(modelFile, vocabFile, new FileSource(deltaFile), newVocabFile, alpha);
+    }
+
+    /**
+     * 增量训练：加载已有模型和词频，合并新语料的词频，为新达到阈值的词加入随机初始化的向量，
+     * 重建Huffman树后只在新语料上训练。
+     * 负采样的输出向量从modelFile + ".neg"加载，只有新词的输出向量从0开始；
+     * 重建的Huffman树形状不同，内部节点的参数只能从0开始，由新语料重新学习，
+     * 使用层次softmax时新语料较小应使用较小的alpha。
+     * vocabFile旁有上次训练保存的短语(vocabFile + ".phrases")时，新语料按同样的短语合并，
+     * 短语再复制到newVocabFile + ".phrases"；增量训练不检测新的短语
+     *
+     * @param modelFile    saveModel输出的模型，使用负采样时旁边应有modelFile + ".neg"
+     * @param vocabFile    上次训练输出的词频文件 (word\tfreq)
+     * @param delta        新增语料
+     * @param newVocabFile 合并后的词频输出，包含低于阈值的词，供下次增量训练使用
+     * @param alpha        增量训练的初始学习率
+     */
+    public void incrementalTraining(String modelFile, String vocabFile, CorpusSource delta,
+                                    String newVocabFile, double alpha) throws Exception {
+        if (hashBuckets > 0) {
+            throw new IllegalStateException("incremental training is not supported with hashed vocabulary");
+        }
+        File phraseFile = new File(vocabFile + PHRASE_SUFFIX);
+        phrases = phraseFile.exists() ? PhraseDetector.load(phraseFile.getPath())
+                                      : Collections.<PhraseDetector>emptyList();
+        if (!phrases.isEmpty()) {
+            delta = applyPhrases(phrases, delta);
+            PhraseDetector.save(phrases, newVocabFile + PHRASE_SUFFIX);
+        }
+        VocabCounter counter = VocabCounter.withMemoryBudget(vocabMemory);
+        loadVocabulary(vocabFile, counter);
+        int deltaLen = countWords(delta, counter);
+        corpusLen = (int) Math.min(Integer.MAX_VALUE, counter.getTotalCount());
+        System.out.println("Corpus size: " + corpusLen + " (delta " + deltaLen + ")");
+        counter.report();
+
+        TextModelCodec.Matrix model = TextModelCodec.readMatrix(modelFile, Integer.MAX_VALUE, threadNum);
+        if (model.dim != vectorSize) {
+            throw new IllegalArgumentException("model vector size " + model.dim + " != " + vectorSize);
+        }
+        Map<String, Integer> modelRows = new HashMap<>(model.words.length * 2);
+        for (int i = 0; i < model.words.length; i++) {
+            modelRows.put(model.words[i], i);
+        }
+        TextModelCodec.Matrix negModel = null;
+        File negFile = new File(modelFile + NEG_SUFFIX);
+        if (negativeSample > 0 && negFile.exists()) {
+            negModel = TextModelCodec.readMatrix(negFile.getPath(), Integer.MAX_VALUE, threadNum);
+            if (negModel.dim != vectorSize || !Arrays.equals(negModel.words, model.words)) {
+                throw new IllegalArgumentException(negFile + " does not match " + modelFile);
+            }
+        } else if (negativeSample > 0) {
+            System.out.println("No " + negFile + ", output vectors start from zero");
+        }
+        Map<String, WordNode> nodes = new LinkedHashMap<>(model.words.length * 2);
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(newVocabFile))) {
+            for (String word : counter.wordsByFrequency(1)) {
+                int freq = counter.get(word);
+                bw.write(word + "\t" + freq + "\n");
+                if (freq >= freqThreshold) {
+                    addWordNode(nodes, word, freq);
+                }
+            }
+        }
+        wordNodeMap = Collections.unmodifiableMap(nodes);
+        vocab = nodes.values().toArray(new WordNode[0]);
+        initVectors();
+        int newWords = 0;
+        for (WordNode node : vocab) {
+            Integer row = modelRows.get(node.getWord());
+            if (row != null) {
+                // 拷贝到按新顺序排列的行中
+                int offset = node.getIndex() * vectorSize;
+                System.arraycopy(model.vectors, row * vectorSize, syn0, offset, vectorSize);
+                if (negModel != null) {
+                    System.arraycopy(negModel.vectors, row * vectorSize, syn1neg, offset, vectorSize);
+                }
+            } else {
+                newWords++;
+            }
+        }
+        System.out.println("Vocabulary size: " + vocab.length + " (new " + newWords + ")");
+        trainCorpus(delta, deltaLen, alpha);
+    }
+
+    private static void loadVocabulary(String vocabFile, VocabCounter counter) throws IOException {
+        try (BufferedReader br = new BufferedReader(new FileReader(vocabFile))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                int sep = line.lastIndexOf('\t');
+                if (sep > 0) {
+                    counter.add(line.substring(0, sep), Integer.parseInt(line.substring(sep + 1)));
+                }
+            }
+        }
+    }
+
+    private static int countWords(CorpusSource source, VocabCounter counter) throws IOException {
+        int len = 0;
+        try (LineIterator it = source.open()) {
+            String line;
+            while ((line = it.nextLine()) != null) {
+                StringTokenizer st = new StringTokenizer(line);
+                while (st.hasMoreTokens()) {
+                    len++;
+                    counter.add(st.nextToken());
+                }
+            }
+        }
+        return len;
+    }
+
+    private void trainCorpus(CorpusSource source, int trainWords, double alpha) throws Exception {
+        // 只用负采样时不需要Huffman树
+        HuffmanNode root = hierarchicalSoftmax ? HuffmanTree.makeHuffmanTree(Arrays.asList(vocab), vectorSize) : null;
+
+        if (negativeSample > 0) {
+            buildUnigram();
+        }
+        ThreadTrainer.initParams(vocab, syn0, syn1neg, vectorSize, trainWords, windowSize, alpha,
+                                 trainMethod, root, iter, hierarchicalSoftmax, negativeSample, unigram,
+                                 minibatch);
+        ScheduledExecutorService prober = null;
+        if (probeInterval > 0 && !probeWords.isEmpty()) {
+            prober = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "model-probe");
+                t.setDaemon(true);
+                return t;
+            });
+            prober.scheduleWithFixedDelay(this::probe, probeInterval, probeInterval, TimeUnit.SECONDS);
+        }
+        // 每轮末尾取回全部许可，即等待本轮提交的块都训练完
+        ForkJoinPool pool = new ForkJoinPool(threadNum);
+        int maxChunks = threadNum * CHUNKS_PER_THREAD;
+        Semaphore inFlight = new Semaphore(maxChunks);
+        epochLosses = new ArrayList<>(iter);
+        lastEpochLoss = Double.NaN;
+        double lastLoss = 0;
+        long lastLossCount = 0;
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < iter; i++) {
+                List<int[]> sentences = new ArrayList<>();
+                List<Integer> rawCounts = new ArrayList<>();
+                int chunkWords = 0;
+                int rawCount = 0;
+                int[] buffer = new int[maxSentenceLen];
+                try (LineIterator it = source.open()) {
+                    String line;
+                    while ((line = it.nextLine()) != null) {
+                        int len = 0;
+                        StringTokenizer st = new StringTokenizer(line);
+                        while (st.hasMoreTokens()) {
+                            int id = wordId(st.nextToken());
+                            rawCount++;
+                            // sentence中只有词表中的词
+                            if (id >= 0 && (subsampleRate <= 0 || include(vocab[id].getFrequency()))) {
+                                buffer[len++] = id;
+                                if (len >= maxSentenceLen) {
+                                    sentences.add(Arrays.copyOf(buffer, len));
+                                    rawCounts.add(rawCount);
+                                    chunkWords += len;
+                                    rawCount = 0;
+                                    len = 0;
                                 }
                             }
                         }
+                        if (len > 0) {
+                            sentences.add(Arrays.copyOf(buffer, len));
+                            rawCounts.add(rawCount);
+                            chunkWords += len;
+                            rawCount = 0;
+                        }
+                        if (chunkWords >= CHUNK_WORDS) {
+                            submitChunk(pool, inFlight, sentences, rawCounts);
+                            sentences = new ArrayList<>();
+                            rawCounts = new ArrayList<>();
+                            chunkWords = 0;
+                        }
                     }
-                    if (!sentence.isEmpty()) {
-                        sentence.add(String.valueOf(totalCount));
-                        corpusQueue.put(sentence);
+                }
+                if (!sentences.isEmpty()) {
+                    submitChunk(pool, inFlight, sentences, rawCounts);
+                }
+
+                // 等本轮的块都训练完再统计损失
+                inFlight.acquire(maxChunks);
+                inFlight.release(maxChunks);
+                Throwable failure = ThreadTrainer.getFailure();
+                if (failure != null) {
+                    throw new RuntimeException("Training task failed", failure);
+                }
+                double loss = ThreadTrainer.getTotalLoss();
+                long lossCount = ThreadTrainer.getTotalLossCount();
+                double epochLoss = (loss - lastLoss) / Math.max(1, lossCount - lastLossCount);
+                lastLoss = loss;
+                lastLossCount = lossCount;
+                lastEpochLoss = epochLoss;
+                System.out.println(String.format("\nEpoch %d: loss %.6f", i + 1, epochLoss));
+                if (earlyStopThreshold > 0 && !epochLosses.isEmpty()) {
+                    double previous = epochLosses.get(epochLosses.size() - 1);
+                    epochLosses.add(epochLoss);
+                    // 上一轮损失为0或NaN时(例如没有训练样本)无法计算相对下降，不提前停止
+                    if (previous > 0 && (previous - epochLoss) / previous < earlyStopThreshold) {
+                        System.out.println("Loss improved less than " + earlyStopThreshold + ", stop early");
+                        break;
                     }
+                } else {
+                    epochLosses.add(epochLoss);
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
+            }
+        } finally {
+            trainingNanos = System.nanoTime() - start;
+            pool.shutdown();
+            if (prober != null) {
+                prober.shutdownNow();
             }
         }
-        corpusQueue.put(ThreadTrainer.END_SENTENCE);
-        latch.await();
-        executor.shutdown();
         System.out.println("\nFinish");
     }
 
+    /**
+     * 提交一块句子，在途的块数达到上限时阻塞，块训练完(包括失败)后归还许可
+     */
+    private static void submitChunk(ForkJoinPool pool, Semaphore inFlight,
+                                    List<int[]> sentences, List<Integer> rawCounts) throws InterruptedException {
+        int[] counts = new int[rawCounts.size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = rawCounts.get(i);
+        }
+        inFlight.acquire();
+        pool.execute(new ThreadTrainer(sentences.toArray(new int[0][]), counts, inFlight::release));
+    }
+
     // The subsampling randomly discards frequent words while keeping the ranking same
     private boolean include(int frequency) {
         double freqRatio = frequency / (subsampleRate * corpusLen);
@@ -236,23 +764,38 @@ public class Trainer {
         return rand >= MathUtils.randomOne();
     }
 
+    /**
+     * 保存输入向量；使用负采样时输出向量按同样的格式和行顺序另存为fileName + ".neg"，供增量训练加载
+     */
     public void saveModel(String fileName) {
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(fileName))) {
-            bw.write(wordNodeMap.size() + " " + vectorSize + "\n");
-            for (Map.Entry<String, WordNode> entry : wordNodeMap.entrySet()) {
-                StringBuilder sb = new StringBuilder();
-                sb.append(entry.getKey());
-                for (float f : entry.getValue().getVector()) {
-                    sb.append(" ").append(f);
-                }
-                sb.append("\n");
-                bw.write(sb.toString());
+        try {
+            writeVectors(fileName, syn0);
+            File negFile = new File(fileName + NEG_SUFFIX);
+            if (negativeSample > 0) {
+                writeVectors(negFile.getPath(), syn1neg);
+            } else if (negFile.exists() && !negFile.delete()) {
+                throw new IOException("Failed to delete stale " + negFile);
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    private void writeVectors(String fileName, float[] matrix) throws IOException {
+        WordNode[] nodes = vocab;
+        TextModelCodec.write(fileName, nodes.length, vectorSize, new TextModelCodec.RowSource() {
+            @Override
+            public String word(int row) {
+                return nodes[row].getWord();
+            }
+
+            @Override
+            public void vector(int row, float[] dest) {
+                System.arraycopy(matrix, row * vectorSize, dest, 0, vectorSize);
+            }
+        });
+    }
+
     private static List<WordNode> getNearest(Map<String, WordNode> wordNodeMap, String word, int num) {
         final float[] vec = wordNodeMap.get(word).getVector();
         PriorityQueue<WordNode> heap = new PriorityQueue<>(num, (x, y) -> compareProduct(x, y, vec));
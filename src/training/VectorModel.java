@@ -1,80 +1,386 @@
 package training;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
 
+import utils.HalfFloat;
 import utils.MathUtils;
+import utils.WordHash;
 
+/**
+ * 所有向量按行连续存放在一个数组中，行号即词的id，顺序与模型文件一致
+ * (Trainer输出的模型按词频降序)，因此高频词的向量在内存中相邻，取前N行即得到前N个高频词。
+ * 向量可以用16位浮点(bfloat16/fp16)存放在short数组中，内存减半，计算时转成float。
+ * 哈希词表训练的模型第i行是第i个桶，查询时对字符串取哈希得到行号，不建立词到行号的HashMap，
+ * 任何字符串(包括训练时没出现过的词)都能查询；words只用作显示的名字。
+ * 训练时没有词落入的桶向量全为0，这些桶不算在模型中，也不会出现在近邻结果里
+ */
 public class VectorModel {
 
-    private Map<String, float[]> wordToVectorMap = new HashMap<String, float[]>();
+    public enum Precision {
+        FP32, BF16, FP16
+    }
+
+    private String[] words;
+    private Precision precision = Precision.FP32;
+    private float[] vectors;        // FP32
+    private short[] halfVectors;    // BF16, FP16
+    private Map<String, Integer> wordIndex;     // 哈希词表时为null
+    private boolean hashed;
+    private BitSet emptyRows = new BitSet();   // 哈希词表中向量全为0的桶
     private int wordVecDim = 200;
 
     public VectorModel(Map<String, float[]> wordToVectorMap) {
         if (wordToVectorMap == null || wordToVectorMap.isEmpty()) {
             throw new IllegalArgumentException("wordToVectorMap should not be empty");
         }
-        this.wordToVectorMap = wordToVectorMap;
         for (Map.Entry<String, float[]> wordVec : wordToVectorMap.entrySet()) {
             this.wordVecDim = wordVec.getValue().length;
             break;
         }
+        words = new String[wordToVectorMap.size()];
+        vectors = new float[words.length * wordVecDim];
+        int row = 0;
+        for (Map.Entry<String, float[]> wordVec : wordToVectorMap.entrySet()) {
+            words[row] = wordVec.getKey();
+            System.arraycopy(wordVec.getValue(), 0, vectors, row * wordVecDim, wordVecDim);
+            row++;
+        }
+        buildIndex();
+    }
+
+    /**
+     * @param vectors 按行存储的words.length * wordVecDim矩阵
+     */
+    public VectorModel(String[] words, float[] vectors, int wordVecDim) {
+        if (words == null || words.length == 0) {
+            throw new IllegalArgumentException("words should not be empty");
+        }
+        if (vectors.length != words.length * wordVecDim) {
+            throw new IllegalArgumentException("vectors should have " + words.length * wordVecDim + " elements");
+        }
+        this.words = words;
+        this.vectors = vectors;
+        this.wordVecDim = wordVecDim;
+        buildIndex();
+    }
+
+    /**
+     * @param halfVectors 按行存储的words.length * wordVecDim矩阵，每个元素是precision格式的16位浮点
+     */
+    public VectorModel(String[] words, short[] halfVectors, int wordVecDim, Precision precision) {
+        if (words == null || words.length == 0) {
+            throw new IllegalArgumentException("words should not be empty");
+        }
+        if (precision == Precision.FP32) {
+            throw new IllegalArgumentException("halfVectors should be BF16 or FP16");
+        }
+        if (halfVectors.length != words.length * wordVecDim) {
+            throw new IllegalArgumentException("vectors should have " + words.length * wordVecDim + " elements");
+        }
+        this.words = words;
+        this.halfVectors = halfVectors;
+        this.wordVecDim = wordVecDim;
+        this.precision = precision;
+        buildIndex();
+    }
+
+    private VectorModel(String[] words, int wordVecDim, Precision precision) {
+        if (words == null || words.length == 0) {
+            throw new IllegalArgumentException("words should not be empty");
+        }
+        this.words = words;
+        this.wordVecDim = wordVecDim;
+        this.precision = precision;
+        this.hashed = true;
+    }
+
+    /**
+     * 哈希词表的模型
+     *
+     * @param words   每个桶的名字
+     * @param vectors 按行存储的words.length * wordVecDim矩阵，第i行是第i个桶
+     */
+    public static VectorModel hashed(String[] words, float[] vectors, int wordVecDim) {
+        VectorModel model = new VectorModel(words, wordVecDim, Precision.FP32);
+        if (vectors.length != words.length * wordVecDim) {
+            throw new IllegalArgumentException("vectors should have " + words.length * wordVecDim + " elements");
+        }
+        model.vectors = vectors;
+        model.findEmptyRows();
+        return model;
+    }
+
+    public static VectorModel hashed(String[] words, short[] halfVectors, int wordVecDim, Precision precision) {
+        if (precision == Precision.FP32) {
+            throw new IllegalArgumentException("halfVectors should be BF16 or FP16");
+        }
+        VectorModel model = new VectorModel(words, wordVecDim, precision);
+        if (halfVectors.length != words.length * wordVecDim) {
+            throw new IllegalArgumentException("vectors should have " + words.length * wordVecDim + " elements");
+        }
+        model.halfVectors = halfVectors;
+        model.findEmptyRows();
+        return model;
+    }
+
+    private void findEmptyRows() {
+        for (int i = 0; i < words.length; i++) {
+            boolean empty = true;
+            int offset = i * wordVecDim;
+            for (int j = 0; j < wordVecDim && empty; j++) {
+                // 16位格式去掉符号位后为0即±0
+                empty = precision == Precision.FP32 ? vectors[offset + j] == 0
+                                                    : (halfVectors[offset + j] & 0x7fff) == 0;
+            }
+            if (empty) {
+                emptyRows.set(i);
+            }
+        }
+    }
+
+    private void buildIndex() {
+        wordIndex = new HashMap<>(words.length * 2);
+        for (int i = 0; i < words.length; i++) {
+            wordIndex.put(words[i], i);
+        }
     }
 
     public static VectorModel loadFromFile(String path) throws Exception {
+        return loadFromFile(path, Integer.MAX_VALUE, Precision.FP32);
+    }
+
+    public static VectorModel loadFromFile(String path, int maxWords) throws Exception {
+        return loadFromFile(path, maxWords, Precision.FP32);
+    }
+
+    /**
+     * 只读取前maxWords行，对按词频排序的模型即前maxWords个高频词。
+     * 16位精度时逐行转换，不会先分配完整的float矩阵
+     */
+    public static VectorModel loadFromFile(String path, int maxWords, Precision precision) throws Exception {
+        return load(path, maxWords, precision, false);
+    }
+
+    /**
+     * 加载Trainer在哈希词表模式下输出的模型，必须读取全部行，否则桶号对不上
+     */
+    public static VectorModel loadHashedFromFile(String path) throws Exception {
+        return loadHashedFromFile(path, Precision.FP32);
+    }
+
+    public static VectorModel loadHashedFromFile(String path, Precision precision) throws Exception {
+        return load(path, Integer.MAX_VALUE, precision, true);
+    }
+
+    private static VectorModel load(String path, int maxWords, Precision precision, boolean hashed)
+            throws Exception {
         if (path == null || path.isEmpty()) {
             throw new IllegalArgumentException("path should not be empty");
         }
-        Map<String, float[]> wordMapLoaded = new HashMap<>(1 << 16);
-        try (BufferedReader br = new BufferedReader(new FileReader(path))) {
-            String line = br.readLine();
-            String[] parts = line.split(" ");
-            int wordCount = Integer.parseInt(parts[0]);
-            int wordVectorDim = Integer.parseInt(parts[1]);
-
-            for (int i = 0; i < wordCount; i++) {
-                line = br.readLine();
-                parts = line.split(" ");
-                String word = parts[0];
-                float[] value = new float[wordVectorDim];
-                for (int j = 0; j < wordVectorDim; j++) {
-                    value[j] = Float.parseFloat(parts[j + 1]);
-                }
-                MathUtils.normalizeVector(value);
-                wordMapLoaded.put(word, value);
-            }
-            return new VectorModel(wordMapLoaded);
+        int[] header = TextModelCodec.readHeader(path);
+        int wordCount = Math.min(maxWords, header[0]);
+        int wordVectorDim = header[1];
+        String[] words = new String[wordCount];
+        if (precision == Precision.FP32) {
+            float[] vectors = new float[wordCount * wordVectorDim];
+            TextModelCodec.read(path, wordCount, TextModelCodec.DEFAULT_THREADS, (row, word, vec) -> {
+                words[row] = word;
+                MathUtils.normalizeVector(vec);
+                System.arraycopy(vec, 0, vectors, row * wordVectorDim, wordVectorDim);
+            });
+            return hashed ? hashed(words, vectors, wordVectorDim) : new VectorModel(words, vectors, wordVectorDim);
         }
+        short[] halfVectors = new short[wordCount * wordVectorDim];
+        TextModelCodec.read(path, wordCount, TextModelCodec.DEFAULT_THREADS, (row, word, vec) -> {
+            words[row] = word;
+            MathUtils.normalizeVector(vec);
+            encodeRow(vec, 0, halfVectors, row * wordVectorDim, wordVectorDim, precision);
+        });
+        return hashed ? hashed(words, halfVectors, wordVectorDim, precision)
+                      : new VectorModel(words, halfVectors, wordVectorDim, precision);
     }
 
     public void saveToFile(String path) throws IOException {
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(path))) {
-            bw.write(wordToVectorMap.size() + " " + wordVecDim + "\n");
-            for (Map.Entry<String, float[]> element : wordToVectorMap.entrySet()) {
-                StringBuilder sb = new StringBuilder();
-                sb.append(element.getKey());
-                for (float d : element.getValue()) {
-                    sb.append(" " + d);
-                }
+        TextModelCodec.write(path, words.length, wordVecDim, new TextModelCodec.RowSource() {
+            @Override
+            public String word(int row) {
+                return words[row];
+            }
+
+            @Override
+            public void vector(int row, float[] dest) {
+                copyRow(row, dest);
+            }
+        });
+    }
+
+    /**
+     * 前topN个词组成的模型，拷贝前topN行；哈希词表的模型不能截断
+     */
+    public VectorModel truncate(int topN) {
+        if (hashed) {
+            throw new IllegalStateException("hashed model can't be truncated");
+        }
+        if (topN >= words.length) {
+            return this;
+        }
+        if (precision == Precision.FP32) {
+            return new VectorModel(Arrays.copyOf(words, topN), Arrays.copyOf(vectors, topN * wordVecDim), wordVecDim);
+        }
+        return new VectorModel(Arrays.copyOf(words, topN), Arrays.copyOf(halfVectors, topN * wordVecDim),
+                               wordVecDim, precision);
+    }
+
+    /**
+     * 转换成另一种精度存储的模型，精度相同时返回自身
+     */
+    public VectorModel withPrecision(Precision target) {
+        if (target == precision) {
+            return this;
+        }
+        if (target == Precision.FP32) {
+            float[] result = new float[words.length * wordVecDim];
+            for (int i = 0; i < words.length; i++) {
+                System.arraycopy(rowVector(i), 0, result, i * wordVecDim, wordVecDim);
             }
+            return hashed ? hashed(words, result, wordVecDim) : new VectorModel(words, result, wordVecDim);
+        }
+        short[] result = new short[words.length * wordVecDim];
+        for (int i = 0; i < words.length; i++) {
+            encodeRow(rowVector(i), 0, result, i * wordVecDim, wordVecDim, target);
+        }
+        return hashed ? hashed(words, result, wordVecDim, target)
+                      : new VectorModel(words, result, wordVecDim, target);
+    }
+
+    private static void encodeRow(float[] src, int srcOffset, short[] dest, int destOffset, int dim,
+                                  Precision precision) {
+        for (int j = 0; j < dim; j++) {
+            float f = src[srcOffset + j];
+            dest[destOffset + j] = precision == Precision.BF16 ? HalfFloat.toBf16(f) : HalfFloat.toFp16(f);
+        }
+    }
+
+    private float[] rowVector(int row) {
+        float[] result = new float[wordVecDim];
+        copyRow(row, result);
+        return result;
+    }
+
+    private void copyRow(int row, float[] dest) {
+        int offset = row * wordVecDim;
+        switch (precision) {
+            case BF16:
+                for (int j = 0; j < wordVecDim; j++) {
+                    dest[j] = HalfFloat.bf16ToFloat(halfVectors[offset + j]);
+                }
+                break;
+            case FP16:
+                for (int j = 0; j < wordVecDim; j++) {
+                    dest[j] = HalfFloat.fp16ToFloat(halfVectors[offset + j]);
+                }
+                break;
+            default:
+                System.arraycopy(vectors, offset, dest, 0, wordVecDim);
+        }
+    }
+
+    private double rowDot(float[] center, int row) {
+        switch (precision) {
+            case BF16:
+                return MathUtils.dotProductBf16(center, halfVectors, row * wordVecDim);
+            case FP16:
+                return MathUtils.dotProductFp16(center, halfVectors, row * wordVecDim);
+            default:
+                return MathUtils.dotProduct(center, vectors, row * wordVecDim);
+        }
+    }
+
+    public Precision getPrecision() {
+        return precision;
+    }
+
+    /**
+     * 向量矩阵占用的字节数，不含词表
+     */
+    public long vectorBytes() {
+        return precision == Precision.FP32 ? 4L * vectors.length : 2L * halfVectors.length;
+    }
+
+    public boolean isHashed() {
+        return hashed;
+    }
+
+    public int size() {
+        return words.length;
+    }
+
+    public int getDimension() {
+        return wordVecDim;
+    }
+
+    public String getWord(int index) {
+        return words[index];
+    }
+
+    /**
+     * @return 词的id，不在模型中返回-1；哈希词表时为词所在的桶
+     */
+    public int indexOf(String word) {
+        if (hashed) {
+            return WordHash.bucket(word, words.length);
+        }
+        Integer index = wordIndex.get(word);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * 哈希词表时，落在训练中没有词的桶的字符串不算在模型中
+     */
+    public boolean contains(String word) {
+        if (hashed) {
+            return !emptyRows.get(indexOf(word));
         }
+        return wordIndex.containsKey(word);
+    }
+
+    /**
+     * @return 向量的拷贝，不在模型中返回null
+     */
+    public float[] getVector(String word) {
+        int index = indexOf(word);
+        if (index < 0 || emptyRows.get(index)) {
+            return null;
+        }
+        return rowVector(index);
+    }
+
+    /**
+     * @return 两个词的余弦相似度，有一个词不在模型中返回NaN
+     */
+    public double similarity(String word1, String word2) {
+        float[] vec1 = getVector(word1);
+        float[] vec2 = getVector(word2);
+        if (vec1 == null || vec2 == null) {
+            return Double.NaN;
+        }
+        return MathUtils.cosineDis(vec1, vec2);
     }
 
     public List<WordScore> nearestTopN(String queryWord, int topNSize) {
-        float[] center = wordToVectorMap.get(queryWord);
+        float[] center = getVector(queryWord);
         if (center == null) {
             return Collections.emptyList();
         }
-        return findNearest(center, queryWord, topNSize);
+        return findNearest(center, indexOf(queryWord), topNSize);
     }
 
     /**
@@ -85,36 +391,35 @@ public class VectorModel {
      */
     public List<WordScore> analogy(String wordFrom, String wordTo, String wordTarget,
                                    int topNSize) {
-        float[] vecFrom = wordToVectorMap.get(wordFrom);
-        float[] vecTo = wordToVectorMap.get(wordTo);
-        float[] vecTarget = wordToVectorMap.get(wordTarget);
+        float[] vecFrom = getVector(wordFrom);
+        float[] vecTo = getVector(wordTo);
+        float[] vecTarget = getVector(wordTarget);
         if (vecTo == null || vecTarget == null || vecFrom == null) {
             return Collections.emptyList();
         }
 
         float[] targetCenter = MathUtils.vectorAdd(vecTarget, MathUtils.vectorMinus(vecTo, vecFrom));
-        return findNearest(targetCenter, wordTarget, topNSize);
+        return findNearest(targetCenter, indexOf(wordTarget), topNSize);
     }
 
-    private List<WordScore> findNearest(float[] center, String excludeWord, int num) {
-        PriorityQueue<WordScore> topHeap = new PriorityQueue<>(num);
-        for (Map.Entry<String, float[]> entry : wordToVectorMap.entrySet()) {
-            String word = entry.getKey();
-            if (word.equals(excludeWord)) {
+    private List<WordScore> findNearest(float[] center, int excludeIndex, int num) {
+        // WordScore按分数从高到低排序，反过来得到堆顶为最小分数的小顶堆
+        PriorityQueue<WordScore> topHeap = new PriorityQueue<>(num, Collections.reverseOrder());
+        for (int i = 0; i < words.length; i++) {
+            if (i == excludeIndex || emptyRows.get(i)) {
                 continue;
             }
-            double dist = MathUtils.dotProduct(center, entry.getValue());
-            if (topHeap.isEmpty()) {
+            String word = words[i];
+            double dist = rowDot(center, i);
+            if (topHeap.size() < num) {
                 topHeap.add(new WordScore(word, dist));
-            } else if (topHeap.peek().score > dist) {
-                if (topHeap.size() == num) {
-                    topHeap.poll();
-                }
+            } else if (topHeap.peek().score < dist) {
+                topHeap.poll();
                 topHeap.add(new WordScore(word, dist));
             }
         }
         List<WordScore> result = new ArrayList<>(topHeap);
-        Collections.sort(result, Collections.reverseOrder());
+        Collections.sort(result);
         return result;
     }
 }
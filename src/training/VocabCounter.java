@@ -0,0 +1,140 @@
+package training;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 词频统计，设置maxSize后表大小超过上限时删除低频词(同C版本的ReduceVocab)，
+ * 每次删除的阈值递增，被删过的词重新出现时从0开始计数，因此留下的词频可能偏小
+ */
+public class VocabCounter {
+
+    /**
+     * 每个词条的估计内存：HashMap.Node、String、char[]/byte[]、int[]
+     */
+    public static final int BYTES_PER_ENTRY = 128;
+
+    private final int maxSize;
+    private Map<String, int[]> counts = new HashMap<>(1 << 16);
+    private long totalCount = 0;
+
+    private int minReduce = 1;
+    private int reduceTimes = 0;
+    private long prunedEntries = 0;
+    private long prunedCount = 0;
+    private long mergedUndercount = 0;
+
+    /**
+     * @param maxSize 表中最多保留的词数，0表示不限制
+     */
+    public VocabCounter(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public static VocabCounter withMemoryBudget(long bytes) {
+        return new VocabCounter(bytes <= 0 ? 0 : (int) Math.min(Integer.MAX_VALUE, bytes / BYTES_PER_ENTRY));
+    }
+
+    public void add(String word) {
+        add(word, 1);
+    }
+
+    public void add(String word, int count) {
+        totalCount += count;
+        int[] c = counts.get(word);
+        if (c == null) {
+            counts.put(word, new int[] {count});
+            if (maxSize > 0 && counts.size() > maxSize) {
+                reduce();
+            }
+        } else {
+            c[0] += count;
+        }
+    }
+
+    private void reduce() {
+        // 剩下的词条仍然很多时继续提高阈值，避免之后每加一个新词就要删一次
+        do {
+            Iterator<int[]> iterator = counts.values().iterator();
+            while (iterator.hasNext()) {
+                int c = iterator.next()[0];
+                if (c <= minReduce) {
+                    iterator.remove();
+                    prunedEntries++;
+                    prunedCount += c;
+                }
+            }
+            reduceTimes++;
+            minReduce++;
+        } while (counts.size() > maxSize * 0.9);
+    }
+
+    /**
+     * 合并另一个计数器的结果，用于多个线程分别统计后汇总
+     */
+    public void addAll(VocabCounter other) {
+        for (Map.Entry<String, int[]> entry : other.counts.entrySet()) {
+            add(entry.getKey(), entry.getValue()[0]);
+        }
+        // 被other删掉的计数也算在总数中
+        totalCount += other.prunedCount;
+        reduceTimes += other.reduceTimes;
+        prunedEntries += other.prunedEntries;
+        prunedCount += other.prunedCount;
+        mergedUndercount += other.maxUndercount();
+    }
+
+    public int get(String word) {
+        int[] c = counts.get(word);
+        return c == null ? 0 : c[0];
+    }
+
+    public int size() {
+        return counts.size();
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * 计数不小于minCount的词，按词频降序排列，词频相同时按字典序
+     */
+    public List<String> wordsByFrequency(int minCount) {
+        List<Map.Entry<String, int[]>> entries = new ArrayList<>();
+        for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+            if (entry.getValue()[0] >= minCount) {
+                entries.add(entry);
+            }
+        }
+        entries.sort((x, y) -> {
+            int c = Integer.compare(y.getValue()[0], x.getValue()[0]);
+            return c != 0 ? c : x.getKey().compareTo(y.getKey());
+        });
+        List<String> words = new ArrayList<>(entries.size());
+        for (Map.Entry<String, int[]> entry : entries) {
+            words.add(entry.getKey());
+        }
+        return words;
+    }
+
+    /**
+     * 某个词的计数最多偏小的值，即各次删除阈值之和
+     */
+    public long maxUndercount() {
+        return (long) minReduce * (minReduce - 1) / 2 + mergedUndercount;
+    }
+
+    public void report() {
+        if (reduceTimes == 0) {
+            return;
+        }
+        System.out.println(String.format("Vocabulary pruned %d times, removed %d entries (%d tokens, %.4f%% of corpus), "
+                                          + "counts may be under by at most %d",
+                                          reduceTimes, prunedEntries, prunedCount,
+                                          100.0 * prunedCount / Math.max(1, totalCount), maxUndercount()));
+    }
+}
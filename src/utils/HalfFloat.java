@@ -0,0 +1,86 @@
+package utils;
+
+/**
+ * 16位浮点数与float之间的转换，结果存放在short中。
+ * bfloat16: float的高16位，8位指数7位尾数，范围与float相同；
+ * fp16: IEEE 754 half，5位指数10位尾数，精度更高但范围只有±65504。
+ * 两种都按round-to-nearest-even舍入
+ */
+public class HalfFloat {
+
+    private static final float[] FP16_TABLE = new float[1 << 16];
+
+    static {
+        for (int i = 0; i < FP16_TABLE.length; i++) {
+            FP16_TABLE[i] = decodeFp16((short) i);
+        }
+    }
+
+    public static short toBf16(float f) {
+        int bits = Float.floatToRawIntBits(f);
+        if ((bits & 0x7fffffff) > 0x7f800000) {
+            return (short) ((bits >>> 16) | 0x40);   // 保持NaN
+        }
+        bits += 0x7fff + ((bits >>> 16) & 1);
+        return (short) (bits >>> 16);
+    }
+
+    public static float bf16ToFloat(short h) {
+        return Float.intBitsToFloat(h << 16);
+    }
+
+    public static short toFp16(float f) {
+        int bits = Float.floatToRawIntBits(f);
+        int sign = (bits >>> 16) & 0x8000;
+        int val = bits & 0x7fffffff;
+        if (val >= 0x7f800000) {
+            // Inf或NaN
+            return (short) (sign | 0x7c00 | (val > 0x7f800000 ? 0x200 : 0));
+        }
+        if (val >= 0x477ff000) {
+            // 舍入后超过65504
+            return (short) (sign | 0x7c00);
+        }
+        if (val < 0x38800000) {
+            // 小于2^-14，非规格化数
+            if (val < 0x33000000) {
+                return (short) sign;
+            }
+            int exp = val >>> 23;
+            int mant = (val & 0x7fffff) | 0x800000;
+            int shift = 126 - exp;
+            int h = mant >>> shift;
+            int rem = mant & ((1 << shift) - 1);
+            int half = 1 << (shift - 1);
+            if (rem > half || (rem == half && (h & 1) != 0)) {
+                h++;
+            }
+            return (short) (sign | h);
+        }
+        int h = (val - 0x38000000) >>> 13;
+        int rem = val & 0x1fff;
+        if (rem > 0x1000 || (rem == 0x1000 && (h & 1) != 0)) {
+            h++;    // 进位可以直接进到指数
+        }
+        return (short) (sign | h);
+    }
+
+    public static float fp16ToFloat(short h) {
+        return FP16_TABLE[h & 0xffff];
+    }
+
+    private static float decodeFp16(short s) {
+        int h = s & 0xffff;
+        int sign = (h & 0x8000) << 16;
+        int exp = (h >>> 10) & 0x1f;
+        int mant = h & 0x3ff;
+        if (exp == 0x1f) {
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mant << 13));
+        }
+        if (exp == 0) {
+            float f = mant * 0x1p-24f;
+            return sign == 0 ? f : -f;
+        }
+        return Float.intBitsToFloat(sign | ((exp + 112) << 23) | (mant << 13));
+    }
+}
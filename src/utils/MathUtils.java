@@ -7,12 +7,15 @@ public class MathUtils {
     private static final int EXP_TABLE_SIZE = 1000;
     private static final int MAX_EXP = 6;
     private static final double[] EXP_TABLE;
+    private static final double[] LOG_SIGMOID_TABLE;
 
     static {
         EXP_TABLE = new double[EXP_TABLE_SIZE];
+        LOG_SIGMOID_TABLE = new double[EXP_TABLE_SIZE];
         for (int i = 0; i < EXP_TABLE_SIZE; i++) {
             EXP_TABLE[i] = Math.exp(((i / (double) EXP_TABLE_SIZE * 2 - 1) * MAX_EXP));
             EXP_TABLE[i] = EXP_TABLE[i] / (EXP_TABLE[i] + 1);
+            LOG_SIGMOID_TABLE[i] = Math.log(EXP_TABLE[i]);
         }
     }
 
@@ -29,6 +32,19 @@ public class MathUtils {
         return EXP_TABLE[(int) ((x + MAX_EXP) * (EXP_TABLE_SIZE / MAX_EXP / 2))];
     }
 
+    /**
+     * log(sigmoid(x))，用于计算损失
+     */
+    public static double logSigmoid(double x) {
+        if (x <= -MAX_EXP) {
+            return x;
+        }
+        if (x >= MAX_EXP) {
+            return 0;
+        }
+        return LOG_SIGMOID_TABLE[(int) ((x + MAX_EXP) * (EXP_TABLE_SIZE / MAX_EXP / 2))];
+    }
+
     public static long random() {
         return rand.updateAndGet(x -> x * 25214903917L + 11);
     }
@@ -63,6 +79,21 @@ public class MathUtils {
         }
     }
 
+    /**
+     * 归一化matrix中从offset开始的长度为dim的一行
+     */
+    public static void normalizeVector(float[] matrix, int offset, int dim) {
+        double norm2 = 0.0;
+        for (int i = offset; i < offset + dim; i++) {
+            norm2 += matrix[i] * matrix[i];
+        }
+        double norm = Math.sqrt(norm2);
+        if (norm > 0) {
+            for (int i = offset; i < offset + dim; i++)
+                matrix[i] /= norm;
+        }
+    }
+
     public static float[] vectorAdd(float[] vec1, float[] vec2) {
         if (vec1 == null || vec2 == null || vec1.length != vec2.length) {
             return null;
@@ -154,6 +185,57 @@ public class MathUtils {
         return result;
     }
 
+    /**
+     * vec与matrix中从offset开始的一行的内积
+     */
+    public static double dotProduct(float[] vec, float[] matrix, int offset) {
+        double result = 0.0;
+        for (int i = 0; i < vec.length; i++) {
+            result += vec[i] * matrix[offset + i];
+        }
+        return result;
+    }
+
+    /**
+     * vec += matrix中从offset开始的一行 * scale
+     */
+    public static void vectorAcc(float[] vec, float[] matrix, int offset, double scale) {
+        for (int i = 0; i < vec.length; i++) {
+            vec[i] += (float) (matrix[offset + i] * scale);
+        }
+    }
+
+    /**
+     * matrix中从offset开始的一行 += vec * scale
+     */
+    public static void rowAcc(float[] matrix, int offset, float[] vec, double scale) {
+        for (int i = 0; i < vec.length; i++) {
+            matrix[offset + i] += (float) (vec[i] * scale);
+        }
+    }
+
+    /**
+     * vec与bfloat16矩阵中从offset开始的一行的内积，在float中累加
+     */
+    public static float dotProductBf16(float[] vec, short[] matrix, int offset) {
+        float result = 0;
+        for (int i = 0; i < vec.length; i++) {
+            result += vec[i] * Float.intBitsToFloat(matrix[offset + i] << 16);
+        }
+        return result;
+    }
+
+    /**
+     * vec与fp16矩阵中从offset开始的一行的内积，在float中累加
+     */
+    public static float dotProductFp16(float[] vec, short[] matrix, int offset) {
+        float result = 0;
+        for (int i = 0; i < vec.length; i++) {
+            result += vec[i] * HalfFloat.fp16ToFloat(matrix[offset + i]);
+        }
+        return result;
+    }
+
     public static double dotProduct(double[] vec1, double[] vec2) {
         if (vec1 == null || vec2 == null || vec1.length != vec2.length) {
             return Double.NaN;
@@ -165,6 +247,70 @@ public class MathUtils {
         return result;
     }
 
+    /**
+     * out(n*m) = a(n*d) * b(m*d)^T，矩阵按行存储
+     */
+    public static void matMulTransB(float[] a, float[] b, int n, int m, int d, float[] out) {
+        int d4 = d & ~3;
+        for (int i = 0; i < n; i++) {
+            int ai = i * d;
+            for (int j = 0; j < m; j++) {
+                int bj = j * d;
+                // 四路累加，打破浮点加法的依赖链
+                float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+                int k = 0;
+                for (; k < d4; k += 4) {
+                    s0 += a[ai + k] * b[bj + k];
+                    s1 += a[ai + k + 1] * b[bj + k + 1];
+                    s2 += a[ai + k + 2] * b[bj + k + 2];
+                    s3 += a[ai + k + 3] * b[bj + k + 3];
+                }
+                for (; k < d; k++) {
+                    s0 += a[ai + k] * b[bj + k];
+                }
+                out[i * m + j] = (s0 + s1) + (s2 + s3);
+            }
+        }
+    }
+
+    /**
+     * out(n*d) += g(n*m) * b(m*d)
+     */
+    public static void matMulAcc(float[] g, float[] b, int n, int m, int d, float[] out) {
+        for (int i = 0; i < n; i++) {
+            int oi = i * d;
+            for (int j = 0; j < m; j++) {
+                float gij = g[i * m + j];
+                if (gij == 0) {
+                    continue;
+                }
+                int bj = j * d;
+                for (int k = 0; k < d; k++) {
+                    out[oi + k] += gij * b[bj + k];
+                }
+            }
+        }
+    }
+
+    /**
+     * out(m*d) += g(n*m)^T * a(n*d)
+     */
+    public static void matMulTransAAcc(float[] g, float[] a, int n, int m, int d, float[] out) {
+        for (int i = 0; i < n; i++) {
+            int ai = i * d;
+            for (int j = 0; j < m; j++) {
+                float gij = g[i * m + j];
+                if (gij == 0) {
+                    continue;
+                }
+                int oj = j * d;
+                for (int k = 0; k < d; k++) {
+                    out[oj + k] += gij * a[ai + k];
+                }
+            }
+        }
+    }
+
     public static double cosineDis(float[] vec1, float[] vec2) {
         return dotProduct(vec1, vec2) / (norm2(vec1) * norm2(vec2));
     }
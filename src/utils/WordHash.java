@@ -0,0 +1,27 @@
+package utils;
+
+/**
+ * 哈希词表用的字符串哈希：32位FNV-1a，按char计算，不需要先编码成字节。
+ * 训练和加载模型必须用同一个函数，否则词会落到不同的桶
+ */
+public class WordHash {
+
+    private static final int FNV_OFFSET = 0x811c9dc5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    public static int hash(String word) {
+        int h = FNV_OFFSET;
+        for (int i = 0; i < word.length(); i++) {
+            h ^= word.charAt(i);
+            h *= FNV_PRIME;
+        }
+        return h;
+    }
+
+    /**
+     * @return 0到buckets-1之间的桶号
+     */
+    public static int bucket(String word, int buckets) {
+        return Integer.remainderUnsigned(hash(word), buckets);
+    }
+}